@@ -0,0 +1,66 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus;
+
+import co.uk.ccmr.cbus.sniffer.CbusEvent;
+
+/**
+ * A CbusReceiveListener which can take several received CBUS messages at once, so that locking,
+ * writes and commits can be done once per batch instead of once per message. 
+ * 
+ * The driver collects the messages decoded from each read of the port, along with any others 
+ * the listener has fallen behind by, and passes them in one call. Frames which could not be 
+ * decoded are still passed one at a time to receiveString, in order between the batches. 
+ * receiveMessage is not called for a listener implementing this interface.
+ * 
+ * @author ianh
+ *
+ */
+public interface CbusBatchListener extends CbusReceiveListener {
+	/**
+	 * Called to pass a batch of incoming CBUS messages, in the order they were received, to the listener.
+	 * The array is reused for the next batch so the listener must not keep it, although it may keep 
+	 * the CbusEvents.
+	 *
+	 * @param batch the received CBUS event messages starting at index 0
+	 * @param count the number of messages in the batch
+	 */
+	public void receiveMessages(CbusEvent [] batch, int count);
+}
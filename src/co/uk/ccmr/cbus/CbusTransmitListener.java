@@ -0,0 +1,60 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus;
+
+import co.uk.ccmr.cbus.sniffer.CbusEvent;
+
+/**
+ * The interface to be implemented by objects wishing to see the CBUS messages a driver has 
+ * written to its communications channel, for example to capture both directions of traffic.
+ * The listener is called from the thread doing the write so it must return quickly.
+ * 
+ * @author ianh
+ *
+ */
+public interface CbusTransmitListener {
+	/**
+	 * Called after a CBUS message has been written.
+	 *
+	 * @param bus the bus number of the driver
+	 * @param ce the transmitted CBUS event message
+	 */
+	public void messageTransmitted(int bus, CbusEvent ce);
+}
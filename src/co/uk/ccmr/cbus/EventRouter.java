@@ -0,0 +1,265 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus;
+
+import co.uk.ccmr.cbus.sniffer.CbusEvent;
+import co.uk.ccmr.cbus.sniffer.Opc;
+import co.uk.ccmr.cbus.util.IntObjectHashMap;
+
+/**
+ * A CbusReceiveListener which passes accessory events to the CbusEventHandlers subscribed to them.
+ * 
+ * Long events (ACON, ACOF, ARON, AROF and their data variants) are routed on the combination of
+ * NN and EN. Short events (ASON, ASOF, ARSON, ARSOF and their data variants) are routed on the DN 
+ * alone, whichever node sent them. The subscribers are found with a single lookup in a primitive 
+ * keyed hash map so the cost of routing does not grow with the number of subscriptions.
+ * 
+ * Other messages, accessory events with no subscribers and the Strings of frames which could not be
+ * decoded are passed to the fallback listener, if one is set.
+ * 
+ * Subscriptions may be changed whilst messages are being received. Each change copies the affected 
+ * map so they are intended to be made mostly during set up.
+ * 
+ * @author ianh
+ *
+ */
+public class EventRouter implements CbusReceiveListener {
+	private static final int NONE = 0;
+	private static final int LONG = 1;
+	private static final int SHORT = 2;
+	/** The kind of accessory event for each OPC value */
+	private static final byte [] KIND = new byte[256];
+	static {
+		for (Opc o : new Opc[] {Opc.ACON, Opc.ACON1, Opc.ACON2, Opc.ACON3, 
+				Opc.ACOF, Opc.ACOF1, Opc.ACOF2, Opc.ACOF3,
+				Opc.ARON, Opc.ARON1, Opc.ARON2, Opc.ARON3,
+				Opc.AROF, Opc.AROF1, Opc.AROF2, Opc.AROF3}) {
+			KIND[o.getValue()] = LONG;
+		}
+		for (Opc o : new Opc[] {Opc.ASON, Opc.ASON1, Opc.ASON2, Opc.ASON3,
+				Opc.ASOF, Opc.ASOF1, Opc.ASOF2, Opc.ASOF3,
+				Opc.ARSON, Opc.ARSON1, Opc.ARSON2, Opc.ARSON3,
+				Opc.ARSOF, Opc.ARSOF1, Opc.ARSOF2, Opc.ARSOF3}) {
+			KIND[o.getValue()] = SHORT;
+		}
+	}
+	
+	private volatile IntObjectHashMap<CbusEventHandler[]> longRoutes;
+	private volatile IntObjectHashMap<CbusEventHandler[]> shortRoutes;
+	private volatile CbusReceiveListener fallback;
+	
+	/**
+	 * Create an EventRouter with no subscriptions.
+	 */
+	public EventRouter() {
+		longRoutes = new IntObjectHashMap<CbusEventHandler[]>();
+		shortRoutes = new IntObjectHashMap<CbusEventHandler[]>();
+	}
+	
+	/**
+	 * Get the routing key of a long event.
+	 * 
+	 * @param nn the node number
+	 * @param en the event number
+	 * @return the key
+	 */
+	public static int key(int nn, int en) {
+		return ((nn & 0xFFFF) << 16) | (en & 0xFFFF);
+	}
+	
+	/**
+	 * Subscribe to a long event.
+	 * 
+	 * @param nn the node number
+	 * @param en the event number
+	 * @param h the handler
+	 */
+	public synchronized void addLongEvent(int nn, int en, CbusEventHandler h) {
+		longRoutes = add(longRoutes, key(nn, en), h);
+	}
+	
+	/**
+	 * Unsubscribe from a long event.
+	 * 
+	 * @param nn the node number
+	 * @param en the event number
+	 * @param h the handler
+	 */
+	public synchronized void removeLongEvent(int nn, int en, CbusEventHandler h) {
+		longRoutes = remove(longRoutes, key(nn, en), h);
+	}
+	
+	/**
+	 * Subscribe to a short event from any node.
+	 * 
+	 * @param dn the device number
+	 * @param h the handler
+	 */
+	public synchronized void addShortEvent(int dn, CbusEventHandler h) {
+		shortRoutes = add(shortRoutes, dn & 0xFFFF, h);
+	}
+	
+	/**
+	 * Unsubscribe from a short event.
+	 * 
+	 * @param dn the device number
+	 * @param h the handler
+	 */
+	public synchronized void removeShortEvent(int dn, CbusEventHandler h) {
+		shortRoutes = remove(shortRoutes, dn & 0xFFFF, h);
+	}
+	
+	/**
+	 * Get the number of long events with subscribers.
+	 * @return number of events
+	 */
+	public int getLongEventCount() {
+		return longRoutes.size();
+	}
+	
+	/**
+	 * Get the number of short events with subscribers.
+	 * @return number of events
+	 */
+	public int getShortEventCount() {
+		return shortRoutes.size();
+	}
+	
+	/**
+	 * Set the listener for messages which are not routed and for frames which could not be decoded.
+	 * 
+	 * @param crl the listener or null for none
+	 */
+	public void setFallback(CbusReceiveListener crl) {
+		fallback = crl;
+	}
+	
+	/**
+	 * Get the listener for messages which are not routed.
+	 * 
+	 * @return the listener or null
+	 */
+	public CbusReceiveListener getFallback() {
+		return fallback;
+	}
+
+	/**
+	 * Pass accessory events to their subscribers.
+	 */
+	@Override
+	public void receiveMessage(CbusEvent ce) {
+		if (ce.hasOpc() && (ce.getOpc() != Opc.UNKNOWN)) {
+			CbusEventHandler [] hs = null;
+			switch (KIND[ce.getOpc().getValue()]) {
+			case LONG:
+				hs = longRoutes.get(key(ce.getNN(), ce.getDN()));
+				break;
+			case SHORT:
+				hs = shortRoutes.get(ce.getDN());
+				break;
+			}
+			if (hs != null) {
+				for (CbusEventHandler h : hs) {
+					h.handle(ce);
+				}
+				return;
+			}
+		}
+		CbusReceiveListener crl = fallback;
+		if (crl != null) crl.receiveMessage(ce);
+	}
+
+	/**
+	 * Pass the String on to the fallback listener.
+	 */
+	@Override
+	public void receiveString(String input) {
+		CbusReceiveListener crl = fallback;
+		if (crl != null) crl.receiveString(input);
+	}
+	
+	/**
+	 * Get a copy of the routes with the handler added.
+	 * @param routes the current routes
+	 * @param k the key
+	 * @param h the handler
+	 * @return the new routes
+	 */
+	private static IntObjectHashMap<CbusEventHandler[]> add(IntObjectHashMap<CbusEventHandler[]> routes, int k, CbusEventHandler h) {
+		IntObjectHashMap<CbusEventHandler[]> m = routes.copy();
+		CbusEventHandler [] old = m.get(k);
+		if (old == null) {
+			m.put(k, new CbusEventHandler[] {h});
+		} else {
+			CbusEventHandler [] hs = new CbusEventHandler[old.length+1];
+			System.arraycopy(old, 0, hs, 0, old.length);
+			hs[old.length] = h;
+			m.put(k, hs);
+		}
+		return m;
+	}
+	
+	/**
+	 * Get a copy of the routes with the handler removed.
+	 * @param routes the current routes
+	 * @param k the key
+	 * @param h the handler
+	 * @return the new routes
+	 */
+	private static IntObjectHashMap<CbusEventHandler[]> remove(IntObjectHashMap<CbusEventHandler[]> routes, int k, CbusEventHandler h) {
+		CbusEventHandler [] old = routes.get(k);
+		if (old == null) return routes;
+		for (int i=0; i<old.length; i++) {
+			if (old[i] == h) {
+				IntObjectHashMap<CbusEventHandler[]> m = routes.copy();
+				if (old.length == 1) {
+					m.remove(k);
+				} else {
+					CbusEventHandler [] hs = new CbusEventHandler[old.length-1];
+					System.arraycopy(old, 0, hs, 0, i);
+					System.arraycopy(old, i+1, hs, i, old.length-i-1);
+					m.put(k, hs);
+				}
+				return m;
+			}
+		}
+		return routes;
+	}
+}
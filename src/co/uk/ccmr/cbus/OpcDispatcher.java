@@ -0,0 +1,196 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import co.uk.ccmr.cbus.sniffer.CbusEvent;
+import co.uk.ccmr.cbus.sniffer.Opc;
+
+/**
+ * A CbusReceiveListener which passes each received message to the CbusEventHandlers registered
+ * for its OPC. The handlers are found with a single lookup using the OPC value so applications
+ * interested in a few OPCs do not each have to test every message.
+ * 
+ * Messages with an unknown OPC are passed to the handlers registered for Opc.UNKNOWN. Messages 
+ * with no handlers, messages without an OPC and the Strings of frames which could not be decoded
+ * are passed to the fallback listener, if one is set.
+ * 
+ * Handlers may be added and removed whilst messages are being received. 
+ * 
+ * Usage:
+ * <pre>
+ * OpcDispatcher dispatcher = new OpcDispatcher();
+ * dispatcher.addHandler(Opc.ACON, ce -&gt; ...);
+ * driver.addListener(dispatcher);
+ * </pre>
+ * 
+ * @author ianh
+ *
+ */
+public class OpcDispatcher implements CbusReceiveListener {
+	private static final CbusEventHandler [] NONE = new CbusEventHandler[0];
+	/** Handlers indexed by OPC value, the entry after the last is for Opc.UNKNOWN */
+	private final AtomicReferenceArray<CbusEventHandler[]> handlers;
+	private volatile CbusReceiveListener fallback;
+	
+	/**
+	 * Create an OpcDispatcher with no handlers.
+	 */
+	public OpcDispatcher() {
+		handlers = new AtomicReferenceArray<CbusEventHandler[]>(257);
+		for (int i=0; i<handlers.length(); i++) {
+			handlers.set(i, NONE);
+		}
+	}
+	
+	/**
+	 * Register a handler for an OPC.
+	 * 
+	 * @param opc the OPC
+	 * @param h the handler
+	 */
+	public synchronized void addHandler(Opc opc, CbusEventHandler h) {
+		int idx = index(opc);
+		CbusEventHandler [] old = handlers.get(idx);
+		CbusEventHandler [] hs = new CbusEventHandler[old.length+1];
+		System.arraycopy(old, 0, hs, 0, old.length);
+		hs[old.length] = h;
+		handlers.set(idx, hs);
+	}
+	
+	/**
+	 * Register a handler for a number of OPCs.
+	 * 
+	 * @param h the handler
+	 * @param opcs the OPCs
+	 */
+	public void addHandler(CbusEventHandler h, Opc... opcs) {
+		for (Opc opc : opcs) {
+			addHandler(opc, h);
+		}
+	}
+	
+	/**
+	 * Remove a handler previously registered for an OPC.
+	 * 
+	 * @param opc the OPC
+	 * @param h the handler
+	 */
+	public synchronized void removeHandler(Opc opc, CbusEventHandler h) {
+		int idx = index(opc);
+		CbusEventHandler [] old = handlers.get(idx);
+		for (int i=0; i<old.length; i++) {
+			if (old[i] == h) {
+				CbusEventHandler [] hs = (old.length == 1) ? NONE : new CbusEventHandler[old.length-1];
+				System.arraycopy(old, 0, hs, 0, i);
+				System.arraycopy(old, i+1, hs, i, old.length-i-1);
+				handlers.set(idx, hs);
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Indicates if any handlers are registered for an OPC.
+	 * 
+	 * @param opc the OPC
+	 * @return true if there is at least one handler
+	 */
+	public boolean hasHandler(Opc opc) {
+		return handlers.get(index(opc)).length > 0;
+	}
+	
+	/**
+	 * Set the listener for messages which have no handler and for frames which could not be decoded.
+	 * 
+	 * @param crl the listener or null for none
+	 */
+	public void setFallback(CbusReceiveListener crl) {
+		fallback = crl;
+	}
+	
+	/**
+	 * Get the listener for messages which have no handler.
+	 * 
+	 * @return the listener or null
+	 */
+	public CbusReceiveListener getFallback() {
+		return fallback;
+	}
+
+	/**
+	 * Pass the message to the handlers for its OPC.
+	 */
+	@Override
+	public void receiveMessage(CbusEvent ce) {
+		Opc opc = ce.hasOpc() ? ce.getOpc() : null;
+		if (opc != null) {
+			CbusEventHandler [] hs = handlers.get(index(opc));
+			if (hs.length > 0) {
+				for (CbusEventHandler h : hs) {
+					h.handle(ce);
+				}
+				return;
+			}
+		}
+		CbusReceiveListener crl = fallback;
+		if (crl != null) crl.receiveMessage(ce);
+	}
+
+	/**
+	 * Pass the String on to the fallback listener.
+	 */
+	@Override
+	public void receiveString(String input) {
+		CbusReceiveListener crl = fallback;
+		if (crl != null) crl.receiveString(input);
+	}
+	
+	/**
+	 * Get the index into handlers for the OPC.
+	 * @param opc the OPC
+	 * @return the index
+	 */
+	private static int index(Opc opc) {
+		int v = opc.getValue();
+		return (v < 0) ? 256 : v;
+	}
+}
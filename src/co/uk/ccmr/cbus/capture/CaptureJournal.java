@@ -0,0 +1,423 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.capture;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import co.uk.ccmr.cbus.CbusBatchListener;
+import co.uk.ccmr.cbus.CbusTransmitListener;
+import co.uk.ccmr.cbus.driver.CbusDriver;
+import co.uk.ccmr.cbus.sniffer.CbusEvent;
+import co.uk.ccmr.cbus.util.LagPolicy;
+
+/**
+ * Records the traffic of one or more drivers as fixed size binary CaptureRecords in memory mapped
+ * segment files. A new segment is started when the current one is full or has been open for the
+ * segment time. Segment files are named with the prefix, the UTC time of their first record and a 
+ * four digit sequence number, which separates segments started in the same millisecond, so they 
+ * sort into order.
+ * <p>
+ * Each segment starts with a HEADER_SIZE byte header holding MAGIC, VERSION, RECORD_SIZE and the 
+ * start time in nanoseconds since the epoch, followed by the records, all little endian. Segments are created at their 
+ * full size and the unused records are left as zeros, which marks the end for readers even if the 
+ * application stops without closing the journal. When a segment is finished its SegmentIndex is 
+ * saved alongside it.
+ * <p>
+ * Received messages reach the journal through its own Executor with the SKIP LagPolicy, so a slow disk
+ * never holds up the reader thread. Any messages missed are counted by the driver's ReceiveRing.
+ * Transmitted messages are copied by the writing thread and recorded through the same Executor. 
+ * Starting a new segment and flushing the old one to disk therefore never happen on a driver's thread.
+ * <p>
+ * Received frames which could not be decoded are recorded raw, see CaptureRecord, with the time they 
+ * reach the journal as no receive time is kept for them.
+ * 
+ * @author ianh
+ *
+ */
+public class CaptureJournal implements CbusBatchListener, CbusTransmitListener, Closeable {
+	/** "CBUSCAP1" */
+	public static final long MAGIC = 0x4342555343415031L;
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 32;
+	/** Default segment size of 64MB, about 2 million records */
+	public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+	/** Default segment time of 1 hour */
+	public static final long DEFAULT_SEGMENT_MILLIS = 60L * 60 * 1000;
+	/** File name extension of segment files */
+	public static final String EXTENSION = ".cap";
+	/** The longest time in seconds close() waits for the records already queued to be written */
+	private static final int CLOSE_WAIT = 5;
+	
+	private static final Logger LOGGER = Logger.getLogger(CaptureJournal.class.getName());
+	
+	private final File dir;
+	private final String prefix;
+	private final int segmentSize;
+	private final long segmentNanos;
+	/** Wall clock time in nanoseconds at the same moment as baseNanoTime */
+	private final long baseEpochNanos;
+	private final long baseNanoTime;
+	private final CaptureRecord record = new CaptureRecord();
+	private final ExecutorService executor;
+	
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private SegmentIndex index;
+	private File current;
+	private long segmentStart;
+	private int position;
+	private long recordCount;
+	private int segmentCount;
+	private boolean closed;
+	/** The listener added to each attached driver */
+	private final Map<CbusDriver, DriverListener> listeners = new HashMap<CbusDriver, DriverListener>();
+	
+	/**
+	 * Create a CaptureJournal with the default segment size and time.
+	 * 
+	 * @param dir the directory for the segment files, created if needed
+	 * @param prefix the start of the segment file names
+	 * @throws IOException if the directory cannot be created
+	 */
+	public CaptureJournal(File dir, String prefix) throws IOException {
+		this(dir, prefix, DEFAULT_SEGMENT_SIZE, DEFAULT_SEGMENT_MILLIS);
+	}
+	
+	/**
+	 * Create a CaptureJournal. The first segment is created when the first record is written.
+	 * 
+	 * @param dir the directory for the segment files, created if needed
+	 * @param prefix the start of the segment file names
+	 * @param segmentSize the size of each segment file in bytes, at most 2GB
+	 * @param segmentMillis the longest time in milliseconds a segment is written to
+	 * @throws IOException if the directory cannot be created
+	 */
+	public CaptureJournal(File dir, String prefix, long segmentSize, long segmentMillis) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create capture directory "+dir);
+		}
+		this.dir = dir;
+		this.prefix = prefix;
+		long records = Math.max(1, (Math.min(segmentSize, Integer.MAX_VALUE) - HEADER_SIZE) / CaptureRecord.RECORD_SIZE);
+		this.segmentSize = (int)(HEADER_SIZE + records * CaptureRecord.RECORD_SIZE);
+		this.segmentNanos = Math.max(1, segmentMillis) * 1000000L;
+		baseEpochNanos = System.currentTimeMillis() * 1000000L;
+		baseNanoTime = System.nanoTime();
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CBUS capture "+prefix);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	/**
+	 * Start recording the messages received and transmitted by a driver.
+	 * @param driver the driver
+	 */
+	public void attach(CbusDriver driver) {
+		DriverListener l = new DriverListener(driver.getBus());
+		synchronized (listeners) {
+			listeners.put(driver, l);
+		}
+		driver.addListener(l, executor, LagPolicy.SKIP);
+		driver.addTransmitListener(this);
+	}
+	
+	/**
+	 * Stop recording a driver's messages.
+	 * @param driver the driver
+	 */
+	public void detach(CbusDriver driver) {
+		DriverListener l;
+		synchronized (listeners) {
+			l = listeners.remove(driver);
+		}
+		if (l != null) driver.removeListener(l);
+		driver.removeTransmitListener(this);
+	}
+	
+	/**
+	 * Records what one driver receives, so that frames which could not be decoded are given the 
+	 * driver's bus number.
+	 */
+	private class DriverListener implements CbusBatchListener {
+		private final int bus;
+		
+		DriverListener(int bus) {
+			this.bus = bus;
+		}
+		
+		@Override
+		public void receiveMessage(CbusEvent ce) {
+			CaptureJournal.this.receiveMessage(ce);
+		}
+		
+		@Override
+		public void receiveMessages(CbusEvent[] batch, int count) {
+			CaptureJournal.this.receiveMessages(batch, count);
+		}
+		
+		@Override
+		public void receiveString(String input) {
+			appendRaw(bus, input);
+		}
+	}
+	
+	/**
+	 * Convert a System.nanoTime() reading into nanoseconds since the epoch.
+	 * @param nanoTime the reading
+	 * @return the wall clock time in nanoseconds
+	 */
+	public long toEpochNanos(long nanoTime) {
+		return baseEpochNanos + (nanoTime - baseNanoTime);
+	}
+	
+	@Override
+	public void receiveMessage(CbusEvent ce) {
+		append(CaptureRecord.RX, ce.getBus(), toEpochNanos(ce.getTimestamp()), ce);
+	}
+	
+	@Override
+	public synchronized void receiveMessages(CbusEvent[] batch, int count) {
+		for (int i=0; i<count; i++) {
+			append(CaptureRecord.RX, batch[i].getBus(), toEpochNanos(batch[i].getTimestamp()), batch[i]);
+		}
+	}
+	
+	/**
+	 * A frame which could not be decoded is recorded raw on bus 0. A journal added to a driver 
+	 * by attach() records the driver's bus number instead.
+	 */
+	@Override
+	public void receiveString(String input) {
+		appendRaw(0, input);
+	}
+	
+	/**
+	 * Record a received frame which could not be decoded.
+	 * 
+	 * @param bus the bus number
+	 * @param input the frame
+	 */
+	private synchronized void appendRaw(int bus, String input) {
+		byte [] b = input.getBytes();
+		if (b.length == 0) return;
+		append(record.setRaw(toEpochNanos(System.nanoTime()), CaptureRecord.RX, bus, b, 0, b.length));
+	}
+	
+	/**
+	 * The message is copied, as the caller may reuse it, and recorded by the journal's Executor.
+	 */
+	@Override
+	public void messageTransmitted(int bus, CbusEvent ce) {
+		final CaptureRecord r = new CaptureRecord().set(toEpochNanos(System.nanoTime()), CaptureRecord.TX, bus, ce);
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					append(r);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the journal has been closed
+		}
+	}
+	
+	/**
+	 * Record a message.
+	 * 
+	 * @param direction CaptureRecord.RX or TX
+	 * @param bus the bus number
+	 * @param time the time in nanoseconds since the epoch
+	 * @param ce the message
+	 */
+	public synchronized void append(int direction, int bus, long time, CbusEvent ce) {
+		append(record.set(time, direction, bus, ce));
+	}
+	
+	/**
+	 * Record a frame, for example one read from another capture.
+	 * 
+	 * @param r the record
+	 */
+	public synchronized void append(CaptureRecord r) {
+		if (closed) return;
+		try {
+			long time = r.getTime();
+			if ((buffer == null) || (position + CaptureRecord.RECORD_SIZE > segmentSize) || (time - segmentStart >= segmentNanos)) {
+				roll(time);
+			}
+			r.writeTo(buffer, position);
+			index.add(r);
+			position += CaptureRecord.RECORD_SIZE;
+			recordCount++;
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Capture stopped, cannot write segment "+current, e);
+			closed = true;
+			closeSegment();
+		}
+	}
+	
+	/**
+	 * Finish the current segment and start a new one.
+	 * @param time the time of the first record of the new segment
+	 * @throws IOException if the segment file cannot be created
+	 */
+	private void roll(long time) throws IOException {
+		closeSegment();
+		SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd'T'HHmmss.SSS'Z'");
+		sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+		String name = prefix + "-" + sdf.format(new Date(time / 1000000));
+		File f;
+		int n = 0;
+		do {
+			f = new File(dir, name + "-" + String.format("%04d", n++) + EXTENSION);
+		} while (f.exists());
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		channel = raf.getChannel();
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putLong(0, MAGIC);
+		buffer.putInt(8, VERSION);
+		buffer.putInt(12, CaptureRecord.RECORD_SIZE);
+		buffer.putLong(16, time);
+		current = f;
+		index = new SegmentIndex();
+		segmentStart = time;
+		position = HEADER_SIZE;
+		segmentCount++;
+	}
+	
+	/**
+	 * Flush the current segment to disk, close its file and save its index.
+	 */
+	private void closeSegment() {
+		if (buffer != null) {
+			buffer.force();
+			buffer = null;
+		}
+		if (index != null) {
+			try {
+				index.save(SegmentIndex.indexFile(current));
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to save capture index for "+current, e);
+			}
+			index = null;
+		}
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to close capture segment "+current, e);
+			}
+			channel = null;
+		}
+	}
+	
+	/**
+	 * Flush the records written so far to disk.
+	 */
+	public synchronized void flush() {
+		if (buffer != null) {
+			buffer.force();
+		}
+	}
+	
+	/**
+	 * Stop recording, flush and close the current segment. The journal's Executor is shut down
+	 * so the journal should be detached from its drivers first. Records already queued on the 
+	 * Executor are written first, waiting at most CLOSE_WAIT seconds.
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(CLOSE_WAIT, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			closed = true;
+			closeSegment();
+		}
+	}
+	
+	/**
+	 * @return the number of records written
+	 */
+	public synchronized long getRecordCount() {
+		return recordCount;
+	}
+	
+	/**
+	 * @return the number of segment files created
+	 */
+	public synchronized int getSegmentCount() {
+		return segmentCount;
+	}
+	
+	/**
+	 * @return the segment file being written or null if none
+	 */
+	public synchronized File getCurrentFile() {
+		return (buffer == null) ? null : current;
+	}
+}
@@ -0,0 +1,280 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import co.uk.ccmr.cbus.sniffer.CbusEvent;
+import co.uk.ccmr.cbus.sniffer.CbusFrame;
+import co.uk.ccmr.cbus.sniffer.Opc;
+
+/**
+ * Finds the messages in the segments of a CaptureJournal which fall in a time range and, optionally, 
+ * have one of a set of opcodes, carry a node number or went in one direction. The SegmentIndex of 
+ * each segment is used to skip the blocks which cannot match, so only a small part of a large capture
+ * has to be read. For example all the messages from node 257 between two times:
+ * <PRE>
+ *  Stream&lt;CbusEvent&gt; s = new CaptureQuery(dir, "layout").between(start, end).nn(257).stream();
+ * </PRE>
+ * The messages are stamped with their bus and the capture time, see CaptureRecord.toEvent(). Frames 
+ * recorded raw because they could not be decoded are left out of the stream.
+ * 
+ * @author ianh
+ *
+ */
+public class CaptureQuery {
+	private final File dir;
+	private final String prefix;
+	private long from = Long.MIN_VALUE;
+	private long to = Long.MAX_VALUE;
+	private long [] opcs;
+	private int nn = -1;
+	private int direction = -1;
+	
+	/**
+	 * Create a query matching every message of a capture.
+	 * 
+	 * @param dir the directory holding the segments
+	 * @param prefix the prefix given to the CaptureJournal
+	 */
+	public CaptureQuery(File dir, String prefix) {
+		this.dir = dir;
+		this.prefix = prefix;
+	}
+	
+	/**
+	 * Only match messages captured in a time range.
+	 * 
+	 * @param fromMillis the start of the range in milliseconds since the epoch, inclusive
+	 * @param toMillis the end of the range in milliseconds since the epoch, exclusive
+	 * @return this query
+	 */
+	public CaptureQuery between(long fromMillis, long toMillis) {
+		from = fromMillis * 1000000L;
+		to = toMillis * 1000000L - 1;
+		return this;
+	}
+	
+	/**
+	 * Only match messages with one of the opcodes. May be called more than once to add opcodes.
+	 * Frames whose OPC is not known never match as the value of their OPC is not recorded.
+	 * 
+	 * @param o the opcodes
+	 * @return this query
+	 * @throws IllegalArgumentException if one of the opcodes is UNKNOWN
+	 */
+	public CaptureQuery opc(Opc... o) {
+		for (Opc opc : o) {
+			if (opc == Opc.UNKNOWN) throw new IllegalArgumentException("Cannot query for an unknown OPC");
+		}
+		if (opcs == null) opcs = new long[4];
+		for (Opc opc : o) {
+			int v = opc.getValue() & 0xFF;
+			opcs[v >>> 6] |= 1L << v;
+		}
+		return this;
+	}
+	
+	/**
+	 * Only match messages carrying a node number.
+	 * 
+	 * @param nn the node number
+	 * @return this query
+	 */
+	public CaptureQuery nn(int nn) {
+		this.nn = nn;
+		return this;
+	}
+	
+	/**
+	 * Only match messages going one way.
+	 * 
+	 * @param direction CaptureRecord.RX or TX
+	 * @return this query
+	 */
+	public CaptureQuery direction(int direction) {
+		this.direction = direction;
+		return this;
+	}
+	
+	/**
+	 * Check whether a record matches the query.
+	 * @param r the record
+	 * @return true if it matches
+	 */
+	public boolean matches(CaptureRecord r) {
+		if ((r.getTime() < from) || (r.getTime() > to)) return false;
+		if ((direction >= 0) && (r.getDirection() != direction)) return false;
+		long header = r.getHeader();
+		if (r.isRaw() && ((opcs != null) || (nn >= 0))) return false;
+		if (opcs != null) {
+			if (!CbusFrame.hasOpc(header)) return false;
+			int v = CbusFrame.opcValue(header);
+			if ((opcs[v >>> 6] & (1L << v)) == 0) return false;
+		}
+		if (nn >= 0) {
+			if (!SegmentIndex.hasNN(header) || (CbusFrame.nn(r.getPayload()) != nn)) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Check whether a block of a segment might have any matching records.
+	 */
+	private boolean blockMatches(SegmentIndex index, int block) {
+		if ((index.getFirstTime(block) > to) || (index.getLastTime(block) < from)) return false;
+		if ((opcs != null) && !index.hasAnyOpc(block, opcs)) return false;
+		if ((nn >= 0) && !index.mightHaveNN(block, nn)) return false;
+		return true;
+	}
+	
+	/**
+	 * Run the query. The segments are read as the stream is consumed and the stream should be closed
+	 * if it is not consumed to the end.
+	 * 
+	 * @return the matching messages in the order they were captured
+	 * @throws UncheckedIOException from the stream if a segment cannot be read
+	 */
+	public Stream<CbusEvent> stream() {
+		final Cursor cursor = new Cursor(CaptureReader.listSegments(dir, prefix));
+		return StreamSupport.stream(cursor, false).onClose(new Runnable() {
+			@Override
+			public void run() {
+				cursor.closeSegment();
+			}
+		});
+	}
+	
+	/**
+	 * Works through the matching blocks of each segment in turn.
+	 */
+	private class Cursor extends Spliterators.AbstractSpliterator<CbusEvent> {
+		private final File [] segments;
+		private final CaptureRecord r = new CaptureRecord();
+		private int segment;
+		private CaptureReader reader;
+		private SegmentIndex index;
+		private int block;
+		private int blockEnd;
+		
+		Cursor(File [] segments) {
+			super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+			this.segments = segments;
+		}
+		
+		@Override
+		public boolean tryAdvance(Consumer<? super CbusEvent> action) {
+			try {
+				while (true) {
+					if (reader == null) {
+						if (!openSegment()) return false;
+					}
+					while (reader.getIndex() < blockEnd) {
+						if (!reader.next(r)) break;
+						if (!r.isRaw() && matches(r)) {
+							action.accept(r.toEvent());
+							return true;
+						}
+					}
+					if (!nextBlock(block + 1)) {
+						closeSegment();
+					}
+				}
+			} catch (IOException e) {
+				closeSegment();
+				throw new UncheckedIOException(e);
+			}
+		}
+		
+		/**
+		 * Open the next segment which might have matching records.
+		 * @return false if there are no more segments
+		 */
+		private boolean openSegment() throws IOException {
+			while (segment < segments.length) {
+				reader = new CaptureReader(segments[segment++]);
+				if (reader.getStartTime() > to) {
+					closeSegment();
+					segment = segments.length;
+					return false;
+				}
+				index = SegmentIndex.of(reader);
+				if (nextBlock(index.findBlock(from))) return true;
+				closeSegment();
+			}
+			return false;
+		}
+		
+		/**
+		 * Move to the next block of the segment which might have matching records.
+		 * @param b the block to start looking from
+		 * @return false if there are no more in this segment
+		 */
+		private boolean nextBlock(int b) {
+			int blocks = index.getBlockCount();
+			while ((b < blocks) && !blockMatches(index, b)) {
+				b++;
+			}
+			if (b >= blocks) return false;
+			block = b;
+			blockEnd = Math.min((b + 1) * SegmentIndex.BLOCK_RECORDS, index.getRecordCount());
+			reader.seek(b * SegmentIndex.BLOCK_RECORDS);
+			return true;
+		}
+		
+		private void closeSegment() {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					// nothing more can be done
+				}
+				reader = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.capture;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads the records of one segment file written by a CaptureJournal, in the order they were written.
+ * The segment may still be being written, in which case the records written so far are read.
+ * 
+ * @author ianh
+ *
+ */
+public class CaptureReader implements Closeable {
+	private final File file;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final long startTime;
+	private int position;
+	
+	/**
+	 * Open a segment file.
+	 * 
+	 * @param file the segment file
+	 * @throws IOException if the file cannot be read or is not a capture segment
+	 */
+	public CaptureReader(File file) throws IOException {
+		this.file = file;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		channel = raf.getChannel();
+		try {
+			long size = channel.size();
+			if ((size < CaptureJournal.HEADER_SIZE) || (size > Integer.MAX_VALUE)) {
+				throw new IOException("Not a capture segment "+file);
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if ((buffer.getLong(0) != CaptureJournal.MAGIC) || (buffer.getInt(12) != CaptureRecord.RECORD_SIZE)) {
+				throw new IOException("Not a capture segment "+file);
+			}
+			if (buffer.getInt(8) != CaptureJournal.VERSION) {
+				throw new IOException("Unsupported capture version "+buffer.getInt(8)+" in "+file);
+			}
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		startTime = buffer.getLong(16);
+		position = CaptureJournal.HEADER_SIZE;
+	}
+	
+	/**
+	 * Get the segment files in a directory with a given prefix, in time order.
+	 * 
+	 * @param dir the directory
+	 * @param prefix the prefix given to the CaptureJournal
+	 * @return the segment files, empty if there are none
+	 */
+	public static File [] listSegments(File dir, final String prefix) {
+		File [] files = dir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File f) {
+				String name = f.getName();
+				return f.isFile() && name.startsWith(prefix+"-") && name.endsWith(CaptureJournal.EXTENSION);
+			}
+		});
+		if (files == null) return new File[0];
+		Arrays.sort(files);
+		return files;
+	}
+	
+	/**
+	 * Read the next record.
+	 * 
+	 * @param r the record to be filled in
+	 * @return false if there are no more records
+	 */
+	public boolean next(CaptureRecord r) {
+		if (position + CaptureRecord.RECORD_SIZE > buffer.limit()) return false;
+		if (!r.readFrom(buffer, position)) return false;
+		position += CaptureRecord.RECORD_SIZE;
+		return true;
+	}
+	
+	/**
+	 * Move to a record.
+	 * @param index the index of the record within the segment
+	 */
+	public void seek(int index) {
+		position = CaptureJournal.HEADER_SIZE + index * CaptureRecord.RECORD_SIZE;
+	}
+	
+	/**
+	 * @return the index of the record which next() will read
+	 */
+	public int getIndex() {
+		return (position - CaptureJournal.HEADER_SIZE) / CaptureRecord.RECORD_SIZE;
+	}
+	
+	/**
+	 * @return the time of the first record of the segment in nanoseconds since the epoch
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+	
+	/**
+	 * @return the segment file
+	 */
+	public File getFile() {
+		return file;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
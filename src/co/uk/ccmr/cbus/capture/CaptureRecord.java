@@ -0,0 +1,274 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.capture;
+
+import java.nio.ByteBuffer;
+
+import co.uk.ccmr.cbus.sniffer.CbusEvent;
+import co.uk.ccmr.cbus.sniffer.CbusFrame;
+
+/**
+ * One frame of a capture: when it was seen, which way it went, which bus it was on and the frame 
+ * itself as CbusFrame longs. A CaptureRecord is reused by readers for each record they read.
+ * <p>
+ * A received frame which could not be decoded is recorded raw. Its first RAW_BYTES bytes, as received, 
+ * are kept in the header and payload, low byte first, and its length is recorded. Longer frames lose 
+ * the remaining bytes.
+ * <p>
+ * In a capture journal each record takes RECORD_SIZE bytes:
+ * <PRE>
+ *  bytes 0-7    time in nanoseconds since the epoch
+ *  bytes 8-15   CbusFrame header
+ *  bytes 16-23  CbusFrame payload
+ *  bytes 24-27  bus number
+ *  byte  28     direction, RX or TX
+ *  byte  29     length of a raw frame, up to 255, or 0 if the frame was decoded
+ *  bytes 30-31  unused
+ * </PRE>
+ * A record with a time of 0 marks the end of the records in a segment.
+ * 
+ * @author ianh
+ *
+ */
+public class CaptureRecord {
+	/** Size in bytes of a record in a capture journal */
+	public static final int RECORD_SIZE = 32;
+	/** Direction of a received frame */
+	public static final int RX = 0;
+	/** Direction of a transmitted frame */
+	public static final int TX = 1;
+	/** Most bytes kept of a frame which could not be decoded */
+	public static final int RAW_BYTES = 16;
+	
+	private long time;
+	private int direction;
+	private int bus;
+	private long header;
+	private long payload;
+	private int rawLength;
+	
+	/**
+	 * Create an empty CaptureRecord.
+	 */
+	public CaptureRecord() {
+	}
+	
+	/**
+	 * Set all the fields.
+	 * 
+	 * @param time nanoseconds since the epoch
+	 * @param direction RX or TX
+	 * @param bus the bus number
+	 * @param header the CbusFrame header
+	 * @param payload the CbusFrame payload
+	 * @return this record
+	 */
+	public CaptureRecord set(long time, int direction, int bus, long header, long payload) {
+		this.time = time;
+		this.direction = direction;
+		this.bus = bus;
+		this.header = header;
+		this.payload = payload;
+		this.rawLength = 0;
+		return this;
+	}
+	
+	/**
+	 * Set all the fields of a frame which could not be decoded.
+	 * 
+	 * @param time nanoseconds since the epoch
+	 * @param direction RX or TX
+	 * @param bus the bus number
+	 * @param rawLength the length of the frame, from 1 to 255
+	 * @param header the first 8 bytes of the frame
+	 * @param payload the next 8 bytes of the frame
+	 * @return this record
+	 */
+	public CaptureRecord setRaw(long time, int direction, int bus, int rawLength, long header, long payload) {
+		set(time, direction, bus, header, payload);
+		this.rawLength = rawLength;
+		return this;
+	}
+	
+	/**
+	 * Set all the fields from a frame which could not be decoded, keeping its first RAW_BYTES bytes.
+	 * 
+	 * @param time nanoseconds since the epoch
+	 * @param direction RX or TX
+	 * @param bus the bus number
+	 * @param b holds the frame
+	 * @param off offset of the frame
+	 * @param len length of the frame, at least 1
+	 * @return this record
+	 */
+	public CaptureRecord setRaw(long time, int direction, int bus, byte [] b, int off, int len) {
+		long h = 0;
+		long p = 0;
+		int n = Math.min(len, RAW_BYTES);
+		for (int i=0; i<n; i++) {
+			long v = b[off+i] & 0xFFL;
+			if (i < 8) {
+				h |= v << (8*i);
+			} else {
+				p |= v << (8*(i-8));
+			}
+		}
+		return setRaw(time, direction, bus, Math.max(1, Math.min(len, 255)), h, p);
+	}
+	
+	/**
+	 * Set all the fields from a message.
+	 * 
+	 * @param time nanoseconds since the epoch
+	 * @param direction RX or TX
+	 * @param bus the bus number
+	 * @param ce the message
+	 * @return this record
+	 */
+	public CaptureRecord set(long time, int direction, int bus, CbusEvent ce) {
+		return set(time, direction, bus, CbusFrame.header(ce), CbusFrame.payload(ce));
+	}
+	
+	/**
+	 * Write the record at a position in a buffer. The time is written last so a reader never 
+	 * sees a partly written record as complete.
+	 * 
+	 * @param buf the buffer
+	 * @param pos the byte offset of the record
+	 */
+	public void writeTo(ByteBuffer buf, int pos) {
+		buf.putLong(pos+8, header);
+		buf.putLong(pos+16, payload);
+		buf.putInt(pos+24, bus);
+		buf.put(pos+28, (byte)direction);
+		buf.put(pos+29, (byte)rawLength);
+		buf.putLong(pos, time);
+	}
+	
+	/**
+	 * Read the record from a position in a buffer.
+	 * 
+	 * @param buf the buffer
+	 * @param pos the byte offset of the record
+	 * @return false if there is no record there
+	 */
+	public boolean readFrom(ByteBuffer buf, int pos) {
+		time = buf.getLong(pos);
+		if (time == 0) return false;
+		header = buf.getLong(pos+8);
+		payload = buf.getLong(pos+16);
+		bus = buf.getInt(pos+24);
+		direction = buf.get(pos+28);
+		rawLength = buf.get(pos+29) & 0xFF;
+		return true;
+	}
+	
+	/**
+	 * Create a CbusEvent for the frame, stamped with the bus and the capture time.
+	 * @return a new CbusEvent, or null if the frame was recorded raw
+	 */
+	public CbusEvent toEvent() {
+		if (rawLength != 0) return null;
+		CbusEvent ce = CbusFrame.toEvent(header, payload);
+		ce.setReceived(bus, -1, time, time / 1000000);
+		return ce;
+	}
+	
+	/**
+	 * @return the time in nanoseconds since the epoch
+	 */
+	public long getTime() {
+		return time;
+	}
+	
+	/**
+	 * @return RX or TX
+	 */
+	public int getDirection() {
+		return direction;
+	}
+	
+	/**
+	 * @return the bus number
+	 */
+	public int getBus() {
+		return bus;
+	}
+	
+	/**
+	 * @return true if the frame could not be decoded and is recorded raw
+	 */
+	public boolean isRaw() {
+		return rawLength != 0;
+	}
+	
+	/**
+	 * @return the length of a raw frame, up to 255, or 0 if the frame was decoded
+	 */
+	public int getRawLength() {
+		return rawLength;
+	}
+	
+	/**
+	 * Get the bytes kept of a raw frame, which may be fewer than its length.
+	 * @return the bytes
+	 */
+	public byte [] getRawBytes() {
+		byte [] b = new byte[Math.min(rawLength, RAW_BYTES)];
+		for (int i=0; i<b.length; i++) {
+			b[i] = (byte)((i < 8) ? (header >>> (8*i)) : (payload >>> (8*(i-8))));
+		}
+		return b;
+	}
+	
+	/**
+	 * @return the CbusFrame header, or the first bytes of a raw frame
+	 */
+	public long getHeader() {
+		return header;
+	}
+	
+	/**
+	 * @return the CbusFrame payload, or the next bytes of a raw frame
+	 */
+	public long getPayload() {
+		return payload;
+	}
+}
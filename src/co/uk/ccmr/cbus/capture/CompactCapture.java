@@ -0,0 +1,114 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.capture;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Converts captures between the CaptureJournal format and the compact capture format.
+ * 
+ * @author ianh
+ *
+ */
+public final class CompactCapture {
+	private static final int BUFSIZE = 64 * 1024;
+	
+	private CompactCapture() {
+	}
+	
+	/**
+	 * Write all the records of a CaptureJournal's segments to a compact capture file.
+	 * 
+	 * @param dir the directory holding the segments
+	 * @param prefix the prefix given to the CaptureJournal
+	 * @param out the compact capture file to create
+	 * @param compress true to compress the blocks, which makes the file around 6 times smaller than the 
+	 * segments rather than 3.5 times
+	 * @return the number of records written
+	 * @throws IOException if a segment cannot be read or the file cannot be written
+	 */
+	public static long fromJournal(File dir, String prefix, File out, boolean compress) throws IOException {
+		CompactCaptureWriter writer = new CompactCaptureWriter(new BufferedOutputStream(new FileOutputStream(out), BUFSIZE), compress);
+		try {
+			CaptureRecord r = new CaptureRecord();
+			for (File segment : CaptureReader.listSegments(dir, prefix)) {
+				CaptureReader reader = new CaptureReader(segment);
+				try {
+					while (reader.next(r)) {
+						writer.write(r);
+					}
+				} finally {
+					reader.close();
+				}
+			}
+		} finally {
+			writer.close();
+		}
+		return writer.getRecordCount();
+	}
+	
+	/**
+	 * Append all the records of a compact capture file to a CaptureJournal.
+	 * 
+	 * @param in the compact capture file
+	 * @param journal the journal to write to
+	 * @return the number of records read
+	 * @throws IOException if the file cannot be read
+	 */
+	public static long toJournal(File in, CaptureJournal journal) throws IOException {
+		CompactCaptureReader reader = new CompactCaptureReader(new BufferedInputStream(new FileInputStream(in), BUFSIZE));
+		long n = 0;
+		try {
+			CaptureRecord r = new CaptureRecord();
+			while (reader.next(r)) {
+				journal.append(r);
+				n++;
+			}
+		} finally {
+			reader.close();
+		}
+		return n;
+	}
+}
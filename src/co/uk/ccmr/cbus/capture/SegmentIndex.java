@@ -0,0 +1,357 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.capture;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import co.uk.ccmr.cbus.sniffer.CbusFrame;
+import co.uk.ccmr.cbus.sniffer.DecodePlan;
+import co.uk.ccmr.cbus.sniffer.Opc;
+
+/**
+ * A sparse index of a capture segment. The records are taken in blocks of BLOCK_RECORDS and for each 
+ * block the index holds the earliest and latest record times, a bitmap of the opcodes present and
+ * a bloom filter of the node numbers of messages which carry one. A query only needs to read the 
+ * blocks whose index entry might match.
+ * <p>
+ * Transmitted and received records may be slightly out of time order as they are written by different 
+ * threads, so the latest time of a block also covers all earlier blocks, which keeps it in order for 
+ * searching.
+ * <p>
+ * The CaptureJournal builds the index as it writes and saves it next to the segment, with the 
+ * extension ".idx", when the segment is finished. The index of a segment without one, such as
+ * the segment being written, can be built by reading the segment.
+ * 
+ * @author ianh
+ *
+ */
+public class SegmentIndex {
+	/** Number of records in each block */
+	public static final int BLOCK_RECORDS = 256;
+	/** "CBUSIDX1" */
+	public static final long MAGIC = 0x4342555349445831L;
+	public static final int VERSION = 1;
+	/** File name extension of index files */
+	public static final String EXTENSION = ".idx";
+	
+	/** Longs per block for the opcode bitmap */
+	private static final int OPC_LONGS = 4;
+	/** Longs per block for the node number bloom filter, 512 bits */
+	private static final int BLOOM_LONGS = 8;
+	private static final int BLOOM_MASK = BLOOM_LONGS * 64 - 1;
+	
+	/** Which opcodes have an NN as their first data bytes */
+	private static final boolean [] HAS_NN = new boolean[256];
+	static {
+		for (Opc o : Opc.values()) {
+			if (o == Opc.UNKNOWN) continue;
+			DecodePlan plan = o.getPlan();
+			int f = plan.indexOf("NN");
+			if ((f >= 0) && (plan.getOffset(f) == 0)) {
+				HAS_NN[o.getValue() & 0xFF] = true;
+			}
+		}
+	}
+	
+	private int recordCount;
+	private long [] firstTimes = new long[16];
+	private long [] lastTimes = new long[16];
+	private long [] opcBits = new long[16 * OPC_LONGS];
+	private long [] nnBloom = new long[16 * BLOOM_LONGS];
+	
+	/**
+	 * Create an empty index.
+	 */
+	public SegmentIndex() {
+	}
+	
+	/**
+	 * Find out if a frame carries a node number.
+	 * @param header the CbusFrame header
+	 * @return true if the opcode's first data bytes are an NN
+	 */
+	public static boolean hasNN(long header) {
+		return CbusFrame.hasOpc(header) && HAS_NN[CbusFrame.opcValue(header)];
+	}
+	
+	/**
+	 * Get the index file for a segment.
+	 * @param segment the segment file
+	 * @return the index file
+	 */
+	public static File indexFile(File segment) {
+		String name = segment.getName();
+		if (name.endsWith(CaptureJournal.EXTENSION)) {
+			name = name.substring(0, name.length() - CaptureJournal.EXTENSION.length());
+		}
+		return new File(segment.getParentFile(), name + EXTENSION);
+	}
+	
+	/**
+	 * The two bit positions in the bloom filter for a node number.
+	 */
+	private static int bloom1(int nn) {
+		return (nn * 0x9E3779B1) >>> 23 & BLOOM_MASK;
+	}
+	private static int bloom2(int nn) {
+		return (nn * 0x85EBCA6B + 0x165667B1) >>> 14 & BLOOM_MASK;
+	}
+	
+	/**
+	 * Add the next record of the segment to the index.
+	 * @param r the record
+	 */
+	public void add(CaptureRecord r) {
+		int block = recordCount / BLOCK_RECORDS;
+		if (recordCount % BLOCK_RECORDS == 0) {
+			if (block == firstTimes.length) {
+				int n = block * 2;
+				firstTimes = Arrays.copyOf(firstTimes, n);
+				lastTimes = Arrays.copyOf(lastTimes, n);
+				opcBits = Arrays.copyOf(opcBits, n * OPC_LONGS);
+				nnBloom = Arrays.copyOf(nnBloom, n * BLOOM_LONGS);
+			}
+			firstTimes[block] = r.getTime();
+			lastTimes[block] = (block == 0) ? r.getTime() : Math.max(r.getTime(), lastTimes[block-1]);
+		} else {
+			firstTimes[block] = Math.min(firstTimes[block], r.getTime());
+			lastTimes[block] = Math.max(lastTimes[block], r.getTime());
+		}
+		long header = r.getHeader();
+		if (!r.isRaw() && CbusFrame.hasOpc(header)) {
+			int opc = CbusFrame.opcValue(header);
+			opcBits[block * OPC_LONGS + (opc >>> 6)] |= 1L << opc;
+			if (HAS_NN[opc]) {
+				int nn = CbusFrame.nn(r.getPayload());
+				int b1 = bloom1(nn);
+				int b2 = bloom2(nn);
+				nnBloom[block * BLOOM_LONGS + (b1 >>> 6)] |= 1L << b1;
+				nnBloom[block * BLOOM_LONGS + (b2 >>> 6)] |= 1L << b2;
+			}
+		}
+		recordCount++;
+	}
+	
+	/**
+	 * Build the index of a segment by reading all of its records.
+	 * @param reader the reader of the segment, which is left after the last record
+	 * @return the index
+	 */
+	public static SegmentIndex build(CaptureReader reader) {
+		SegmentIndex index = new SegmentIndex();
+		CaptureRecord r = new CaptureRecord();
+		reader.seek(0);
+		while (reader.next(r)) {
+			index.add(r);
+		}
+		return index;
+	}
+	
+	/**
+	 * Get the index of a segment, loading the index file if there is one or building it if not.
+	 * @param reader the reader of the segment
+	 * @return the index
+	 * @throws IOException if the index file cannot be read
+	 */
+	public static SegmentIndex of(CaptureReader reader) throws IOException {
+		File f = indexFile(reader.getFile());
+		if (f.isFile()) {
+			return load(f);
+		}
+		return build(reader);
+	}
+	
+	/**
+	 * Save the index to a file.
+	 * @param f the file
+	 * @throws IOException if the file cannot be written
+	 */
+	public void save(File f) throws IOException {
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+		try {
+			dos.writeLong(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeInt(BLOCK_RECORDS);
+			dos.writeInt(recordCount);
+			int blocks = getBlockCount();
+			for (int b=0; b<blocks; b++) {
+				dos.writeLong(firstTimes[b]);
+				dos.writeLong(lastTimes[b]);
+				for (int i=0; i<OPC_LONGS; i++) {
+					dos.writeLong(opcBits[b * OPC_LONGS + i]);
+				}
+				for (int i=0; i<BLOOM_LONGS; i++) {
+					dos.writeLong(nnBloom[b * BLOOM_LONGS + i]);
+				}
+			}
+		} finally {
+			dos.close();
+		}
+	}
+	
+	/**
+	 * Load an index from a file.
+	 * @param f the file
+	 * @return the index
+	 * @throws IOException if the file cannot be read or is not an index
+	 */
+	public static SegmentIndex load(File f) throws IOException {
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try {
+			if ((dis.readLong() != MAGIC) || (dis.readInt() != VERSION) || (dis.readInt() != BLOCK_RECORDS)) {
+				throw new IOException("Not a capture index "+f);
+			}
+			SegmentIndex index = new SegmentIndex();
+			index.recordCount = dis.readInt();
+			int blocks = index.getBlockCount();
+			int n = Math.max(16, blocks);
+			index.firstTimes = new long[n];
+			index.lastTimes = new long[n];
+			index.opcBits = new long[n * OPC_LONGS];
+			index.nnBloom = new long[n * BLOOM_LONGS];
+			for (int b=0; b<blocks; b++) {
+				index.firstTimes[b] = dis.readLong();
+				index.lastTimes[b] = dis.readLong();
+				for (int i=0; i<OPC_LONGS; i++) {
+					index.opcBits[b * OPC_LONGS + i] = dis.readLong();
+				}
+				for (int i=0; i<BLOOM_LONGS; i++) {
+					index.nnBloom[b * BLOOM_LONGS + i] = dis.readLong();
+				}
+			}
+			return index;
+		} finally {
+			dis.close();
+		}
+	}
+	
+	/**
+	 * @return the number of records indexed
+	 */
+	public int getRecordCount() {
+		return recordCount;
+	}
+	
+	/**
+	 * @return the number of blocks
+	 */
+	public int getBlockCount() {
+		return (recordCount + BLOCK_RECORDS - 1) / BLOCK_RECORDS;
+	}
+	
+	/**
+	 * @param block the block number
+	 * @return the earliest record time of the block in nanoseconds since the epoch
+	 */
+	public long getFirstTime(int block) {
+		return firstTimes[block];
+	}
+	
+	/**
+	 * @param block the block number
+	 * @return the latest record time of the block or any earlier block, in nanoseconds since the epoch
+	 */
+	public long getLastTime(int block) {
+		return lastTimes[block];
+	}
+	
+	/**
+	 * Find out if a block has any messages with an opcode.
+	 * @param block the block number
+	 * @param opc the opcode value
+	 * @return true if it does
+	 */
+	public boolean hasOpc(int block, int opc) {
+		return (opcBits[block * OPC_LONGS + (opc >>> 6)] & (1L << opc)) != 0;
+	}
+	
+	/**
+	 * Find out if a block has any messages with an opcode from a set.
+	 * @param block the block number
+	 * @param opcs the set of opcodes as a 4 long bitmap
+	 * @return true if it does
+	 */
+	public boolean hasAnyOpc(int block, long [] opcs) {
+		for (int i=0; i<OPC_LONGS; i++) {
+			if ((opcBits[block * OPC_LONGS + i] & opcs[i]) != 0) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Find out if a block might have a message from a node. False positives are possible.
+	 * @param block the block number
+	 * @param nn the node number
+	 * @return false if the block has no messages carrying the node number
+	 */
+	public boolean mightHaveNN(int block, int nn) {
+		int b1 = bloom1(nn);
+		int b2 = bloom2(nn);
+		return ((nnBloom[block * BLOOM_LONGS + (b1 >>> 6)] & (1L << b1)) != 0) 
+				&& ((nnBloom[block * BLOOM_LONGS + (b2 >>> 6)] & (1L << b2)) != 0);
+	}
+	
+	/**
+	 * Find the first block which might have records at or after a time.
+	 * @param time nanoseconds since the epoch
+	 * @return the block number, or getBlockCount() if there are none
+	 */
+	public int findBlock(long time) {
+		int lo = 0;
+		int hi = getBlockCount();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (lastTimes[mid] < time) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+}
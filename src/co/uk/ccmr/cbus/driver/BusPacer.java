@@ -0,0 +1,159 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.driver;
+
+import co.uk.ccmr.cbus.sniffer.CbusEvent;
+
+/**
+ * Limits the rate at which CBUS messages are released for transmission to a fraction of the 
+ * CAN bus capacity so that the interface adapter is not sent more than the bus can carry.
+ * Each message is costed in bits on the wire, including worst case bit stuffing, and the 
+ * pacer keeps track of when the bus will have finished sending what has been released so far.
+ * 
+ * @author ianh
+ *
+ */
+public class BusPacer {
+	/** The CBUS CAN bit rate in bits per second. */
+	public static final int CBUS_BIT_RATE = 125000;
+	/** 
+	 * The bus time in nanoseconds of the most messages released together. A message arriving just 
+	 * after a batch is released waits no longer than about this for the bus.
+	 */
+	public static final long BURST_NANOS = 5000000;
+	
+	private final double nanosPerBit;
+	private long nextFree;
+	
+	/**
+	 * Create a BusPacer.
+	 * 
+	 * @param utilisation the percentage of the bus capacity which may be used. 0 disables pacing.
+	 */
+	public BusPacer(int utilisation) {
+		if (utilisation <= 0) {
+			nanosPerBit = 0;
+		} else {
+			nanosPerBit = 1e9 * 100 / ((double)CBUS_BIT_RATE * Math.min(utilisation, 100));
+		}
+		nextFree = System.nanoTime();
+	}
+	
+	/**
+	 * Get the worst case number of bits on the wire for a CAN frame, including the start of frame, 
+	 * CRC, ACK, end of frame, interframe space and bit stuffing.
+	 * 
+	 * @param extended true for a 29 bit identifier, false for 11 bits
+	 * @param dlc number of data bytes
+	 * @return the number of bits
+	 */
+	public static int frameBits(boolean extended, int dlc) {
+		int stuffed = (extended ? 54 : 34) + 8*dlc;
+		int fixed = (extended ? 67 : 47) + 8*dlc;
+		return fixed + (stuffed - 1)/4;
+	}
+	
+	/**
+	 * Get the worst case number of bits on the wire for a CBUS message.
+	 * 
+	 * @param ce the message
+	 * @return the number of bits
+	 */
+	public static int frameBits(CbusEvent ce) {
+		return frameBits(ce.isExtended(), ce.getCanDlc());
+	}
+	
+	/**
+	 * Reserve bus time for a number of bits.
+	 * 
+	 * @param bits the number of bits to be sent
+	 * @return the time in nanoseconds to wait before sending them
+	 */
+	public synchronized long reserve(int bits) {
+		if (nanosPerBit == 0) return 0;
+		long now = System.nanoTime();
+		if (nextFree - now < 0) {
+			// bus is idle
+			nextFree = now;
+		}
+		long wait = nextFree - now;
+		nextFree += (long)(bits * nanosPerBit);
+		return wait;
+	}
+	
+	/**
+	 * Get the number of bits which may be released together, which is what the bus can carry 
+	 * in BURST_NANOS.
+	 * 
+	 * @return the number of bits, or Integer.MAX_VALUE if pacing is disabled
+	 */
+	public int getBurstBits() {
+		if (nanosPerBit == 0) return Integer.MAX_VALUE;
+		return (int)(BURST_NANOS / nanosPerBit);
+	}
+	
+	/**
+	 * Wait until the bus has finished sending everything released so far.
+	 * 
+	 * @throws InterruptedException if interrupted whilst waiting
+	 */
+	public void awaitIdle() throws InterruptedException {
+		long wait;
+		synchronized (this) {
+			wait = nextFree - System.nanoTime();
+		}
+		if (wait > 0) {
+			Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+		}
+	}
+	
+	/**
+	 * Wait until the bus has capacity for the bits.
+	 * 
+	 * @param bits the number of bits to be sent
+	 * @throws InterruptedException if interrupted whilst waiting
+	 */
+	public void pace(int bits) throws InterruptedException {
+		long wait = reserve(bits);
+		if (wait > 0) {
+			Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+		}
+	}
+}
@@ -39,10 +39,16 @@
 */
 package co.uk.ccmr.cbus.driver;
 
+import java.util.concurrent.Executor;
+
 import javax.swing.text.StyledDocument;
 
 import co.uk.ccmr.cbus.CbusReceiveListener;
+import co.uk.ccmr.cbus.CbusTransmitListener;
 import co.uk.ccmr.cbus.sniffer.CbusEvent;
+import co.uk.ccmr.cbus.sniffer.CbusEvent.MinPri;
+import co.uk.ccmr.cbus.sniffer.CbusEvent.MjPri;
+import co.uk.ccmr.cbus.util.LagPolicy;
 import co.uk.ccmr.cbus.util.Options;
 
 /**
@@ -61,6 +67,12 @@ public interface CbusDriver {
 	 * @param o the set of options for this interface
 	 */
 	public void init (int bus, Options o);
+	/**
+	 * Get the bus identifier given to init.
+	 * 
+	 * @return the bus number
+	 */
+	public int getBus();
 	/**
 	 * Make a connection to the specified port.
 	 *
@@ -79,25 +91,51 @@ public interface CbusDriver {
 	
 	/**
 	 * Add a receive message listener which is called upon a CBUS message being received on this
-	 * communications channel.
+	 * communications channel. The listener is called from the driver's shared dispatch thread 
+	 * rather than the thread reading the port.
 	 *
 	 * @param crl the CbusReceiveListener to receive the message
 	 */
 	public void addListener(CbusReceiveListener crl);
+	/**
+	 * Add a receive message listener which is called from its own Executor.
+	 *
+	 * @param crl the CbusReceiveListener to receive the message
+	 * @param executor used to call the listener, or null for the shared dispatch thread
+	 * @param policy what happens if the listener falls behind, or null for the LagPolicy in the Options
+	 */
+	public void addListener(CbusReceiveListener crl, Executor executor, LagPolicy policy);
 	/**
 	 * Remove a previously registered receive message listener.
 	 *
 	 * @param crl the CbusReceiveListener to remove
 	 */
 	public void removeListener(CbusReceiveListener crl);
+	/**
+	 * Add a listener which is called after each CBUS message has been written to this 
+	 * communications channel. It is called from the thread doing the write.
+	 *
+	 * @param ctl the CbusTransmitListener
+	 */
+	public void addTransmitListener(CbusTransmitListener ctl);
+	/**
+	 * Remove a previously registered transmit listener.
+	 *
+	 * @param ctl the CbusTransmitListener to remove
+	 */
+	public void removeTransmitListener(CbusTransmitListener ctl);
 	
 	/**
 	 * Add the CbusEvent message onto the queue of messages to be transmitted. 
-	 * This is a normally a non-blocking operation.
+	 * This is a normally a non-blocking operation. Where there is a queue, messages are transmitted
+	 * in order of their MjPri and MinPri and in the order they were queued within a priority.
+	 * If the queue is bounded and full the outcome depends upon the OverflowPolicy in the Options.
+	 * A message which is refused is not transmitted and is counted by getWriterRejectedCount().
 	 *
 	 * @param ce the cbus message to be transmitted
+	 * @return true if the message was queued or sent, false if it was refused or the driver is not connected
 	 */
-	public void queueForTransmit(CbusEvent ce);
+	public boolean queueForTransmit(CbusEvent ce);
 	
 	/**
 	 * Get a list of implementation specific port names that are available to be used. Not all implementations support
@@ -109,14 +147,55 @@ public interface CbusDriver {
 	public String[] getPortNames();
 	
 	/**
-	 * Return the size of the Reader queue if one exists.
+	 * Get the ReceiveRing holding received messages for the listeners, from which the lag of 
+	 * each listener can be obtained.
+	 * 
+	 * @return the receive ring
+	 */
+	public ReceiveRing getReceiveRing();
+	
+	/**
+	 * Return the number of received messages waiting for the slowest listener.
 	 * @return reader queue size
 	 */
 	public int getReaderQueueSize();
+	/**
+	 * Return the largest number of received messages which have been waiting for a listener.
+	 * @return reader queue high water mark
+	 */
+	public int getReaderQueueHighWaterMark();
+	/**
+	 * Return the number of received messages missed by listeners which fell too far behind.
+	 * @return number of dropped messages
+	 */
+	public long getReaderDroppedCount();
+	/**
+	 * Get the throughput and latency figures for this driver.
+	 * @return the driver metrics
+	 */
+	public DriverMetrics getMetrics();
 	/**
 	 * Return the size of the Writer queue if one exists.
 	 * @return writer queue size
 	 */
 	public int getWriterQueueSize();
+	/**
+	 * Return the number of messages in the Writer queue at the specified priority if one exists.
+	 * @param mjPri the major priority
+	 * @param minPri the minor priority
+	 * @return writer queue size at the priority
+	 */
+	public int getWriterQueueSize(MjPri mjPri, MinPri minPri);
+	/**
+	 * Return the number of messages dropped from the Writer queue by its overflow policy, including 
+	 * those replaced by conflation.
+	 * @return number of dropped messages
+	 */
+	public long getWriterDroppedCount();
+	/**
+	 * Return the number of messages refused because the Writer queue was full.
+	 * @return number of rejected messages
+	 */
+	public long getWriterRejectedCount();
 
 }
@@ -0,0 +1,251 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.driver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import co.uk.ccmr.cbus.sniffer.CbusEvent;
+import co.uk.ccmr.cbus.sniffer.Opc;
+import co.uk.ccmr.cbus.util.LatencyHistogram;
+import co.uk.ccmr.cbus.util.RateMeter;
+
+/**
+ * Throughput and latency figures for a driver. The reader thread records each received frame 
+ * and the writer records each batch it writes. Everything is kept in striped or atomic counters
+ * so recording takes no locks and is cheap enough to leave on all the time.
+ * 
+ * Per opcode counts are indexed by the opcode value, with index 256 counting frames with no
+ * recognised opcode such as extended frames.
+ * 
+ * @author ianh
+ *
+ */
+public class DriverMetrics {
+	/** Index of the per opcode count used for frames with no recognised opcode */
+	public static final int NO_OPC = 256;
+	
+	private final RateMeter rxFrames = new RateMeter();
+	private final RateMeter rxBytes = new RateMeter();
+	private final RateMeter txFrames = new RateMeter();
+	private final RateMeter txBytes = new RateMeter();
+	private final LongAdder parseErrors = new LongAdder();
+	private final AtomicLongArray rxByOpc = new AtomicLongArray(NO_OPC+1);
+	private final AtomicLongArray txByOpc = new AtomicLongArray(NO_OPC+1);
+	private final LatencyHistogram queueWait = new LatencyHistogram();
+	private final LatencyHistogram writeLatency = new LatencyHistogram();
+	
+	/**
+	 * Get the per opcode index for a message.
+	 * @param ce the message
+	 * @return the opcode value or NO_OPC
+	 */
+	private static int opcIndex(CbusEvent ce) {
+		Opc opc = ce.getOpc();
+		if (ce.isExtended() || (opc == null) || (opc == Opc.UNKNOWN)) return NO_OPC;
+		return opc.getValue() & 0xFF;
+	}
+	
+	/**
+	 * Record a received frame.
+	 * 
+	 * @param ce the decoded message or null if the frame could not be decoded
+	 * @param len the length of the frame in bytes
+	 * @param nanos System.nanoTime() when the frame was received
+	 */
+	public void frameReceived(CbusEvent ce, int len, long nanos) {
+		rxFrames.record(1, nanos);
+		rxBytes.record(len, nanos);
+		if (ce == null) {
+			parseErrors.increment();
+		} else {
+			rxByOpc.incrementAndGet(opcIndex(ce));
+		}
+	}
+	
+	/**
+	 * Record that a batch of messages has been written.
+	 * 
+	 * @param batcher the TransmitBatcher holding the batch
+	 * @param start System.nanoTime() when the write started
+	 * @param end System.nanoTime() when the write returned
+	 */
+	public void batchWritten(TransmitBatcher batcher, long start, long end) {
+		int n = batcher.getLastBatchFrames();
+		for (int i=0; i<n; i++) {
+			CbusEvent ce = batcher.getEvent(i);
+			long queued = ce.getQueuedTime();
+			if (queued != 0) {
+				queueWait.record(start - queued);
+			}
+			txByOpc.incrementAndGet(opcIndex(ce));
+		}
+		txFrames.record(n, end);
+		txBytes.record(batcher.getLength(), end);
+		writeLatency.record(end - start);
+	}
+	
+	/**
+	 * Record that a single message has been written.
+	 * 
+	 * @param ce the message
+	 * @param len the number of bytes written
+	 * @param start System.nanoTime() when the write started
+	 * @param end System.nanoTime() when the write returned
+	 */
+	public void frameWritten(CbusEvent ce, int len, long start, long end) {
+		long queued = ce.getQueuedTime();
+		if (queued != 0) {
+			queueWait.record(start - queued);
+		}
+		txByOpc.incrementAndGet(opcIndex(ce));
+		txFrames.record(1, end);
+		txBytes.record(len, end);
+		writeLatency.record(end - start);
+	}
+	
+	/**
+	 * @return the total number of frames received, including those which could not be decoded
+	 */
+	public long getRxFrames() {
+		return rxFrames.getTotal();
+	}
+	
+	/**
+	 * @return the total number of bytes of received frames
+	 */
+	public long getRxBytes() {
+		return rxBytes.getTotal();
+	}
+	
+	/**
+	 * @return the recent number of frames received per second
+	 */
+	public double getRxFrameRate() {
+		return rxFrames.getRate();
+	}
+	
+	/**
+	 * @return the recent number of bytes received per second
+	 */
+	public double getRxByteRate() {
+		return rxBytes.getRate();
+	}
+	
+	/**
+	 * @return the total number of frames written
+	 */
+	public long getTxFrames() {
+		return txFrames.getTotal();
+	}
+	
+	/**
+	 * @return the total number of bytes written
+	 */
+	public long getTxBytes() {
+		return txBytes.getTotal();
+	}
+	
+	/**
+	 * @return the recent number of frames written per second
+	 */
+	public double getTxFrameRate() {
+		return txFrames.getRate();
+	}
+	
+	/**
+	 * @return the recent number of bytes written per second
+	 */
+	public double getTxByteRate() {
+		return txBytes.getRate();
+	}
+	
+	/**
+	 * @return the number of received frames which could not be decoded
+	 */
+	public long getParseErrors() {
+		return parseErrors.sum();
+	}
+	
+	/**
+	 * Get the number of messages received with an opcode.
+	 * @param opc the opcode value or NO_OPC
+	 * @return the count
+	 */
+	public long getRxCount(int opc) {
+		return rxByOpc.get(opc);
+	}
+	
+	/**
+	 * Get the number of messages written with an opcode.
+	 * @param opc the opcode value or NO_OPC
+	 * @return the count
+	 */
+	public long getTxCount(int opc) {
+		return txByOpc.get(opc);
+	}
+	
+	/**
+	 * Get the histogram of the time messages spent between being queued for transmit and 
+	 * their write starting, including any time spent waiting for bus capacity.
+	 * @return the histogram in nanoseconds
+	 */
+	public LatencyHistogram getQueueWait() {
+		return queueWait;
+	}
+	
+	/**
+	 * Get the histogram of the time taken by each write to the port or socket.
+	 * @return the histogram in nanoseconds
+	 */
+	public LatencyHistogram getWriteLatency() {
+		return writeLatency;
+	}
+	
+	/**
+	 * Summarise the metrics.
+	 */
+	@Override
+	public String toString() {
+		return String.format("rx %d frames (%.1f/s) %d bytes (%.1f/s) %d parse errors; tx %d frames (%.1f/s) %d bytes (%.1f/s); queue wait %s; write %s",
+				getRxFrames(), getRxFrameRate(), getRxBytes(), getRxByteRate(), getParseErrors(),
+				getTxFrames(), getTxFrameRate(), getTxBytes(), getTxByteRate(), queueWait, writeLatency);
+	}
+}
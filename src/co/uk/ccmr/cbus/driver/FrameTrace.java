@@ -0,0 +1,210 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.driver;
+
+import java.awt.Color;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import co.uk.ccmr.cbus.sniffer.CbusEvent;
+import co.uk.ccmr.cbus.sniffer.CbusFrame;
+
+/**
+ * Traces the frames received and transmitted by the drivers to the Driver logger without slowing
+ * the read and write loops. The drivers call trace() for each frame, after it has been written for a 
+ * transmitted frame so that discarded frames are not shown as sent. When tracing is off this is a single 
+ * test of a static field. When on, the frame is packed as CbusFrame longs into a lock free ring and a 
+ * background thread formats and logs it. If the formatter falls a whole ring behind further frames are 
+ * dropped and counted rather than waiting for it.
+ * 
+ * @author ianh
+ *
+ */
+public class FrameTrace implements Runnable {
+	/** Direction of a received frame */
+	public static final int RX = 0;
+	/** Direction of a transmitted frame */
+	public static final int TX = 1;
+	
+	private static final Logger DRIVER_LOGGER = Logger.getLogger("Driver");
+	/** Number of longs held for each frame: header, payload and direction */
+	private static final int ENTRY = 3;
+	/** How long the formatter sleeps when there is nothing to format */
+	private static final long IDLE_NANOS = 5000000L;
+	
+	/** The running trace or null when tracing is off */
+	private static volatile FrameTrace active;
+	
+	private final int mask;
+	private final int base;
+	private final long [] entries;
+	/** The sequence number held by each slot, written last so the formatter sees a whole entry */
+	private final AtomicLongArray published;
+	private final AtomicLong claimed = new AtomicLong();
+	/** The sequence number the formatter will read next */
+	private volatile long consumed;
+	private final LongAdder dropped = new LongAdder();
+	private volatile boolean running = true;
+	private final StringBuilder logBuilder = new StringBuilder(128);
+	
+	/**
+	 * Create a FrameTrace.
+	 * @param capacity number of frames held, rounded up to a power of 2
+	 * @param base the number base used to format the frames
+	 */
+	private FrameTrace(int capacity, int base) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		mask = size - 1;
+		this.base = base;
+		entries = new long[size * ENTRY];
+		published = new AtomicLongArray(size);
+		for (int i=0; i<size; i++) {
+			published.set(i, -1);
+		}
+	}
+	
+	/**
+	 * Turn tracing on, unless it is already on. Does nothing if the capacity is 0 so a driver 
+	 * configured without tracing does not turn off tracing for other drivers.
+	 * 
+	 * @param capacity the number of frames the ring holds
+	 * @param base the number base used to format the frames
+	 */
+	public static synchronized void start(int capacity, int base) {
+		if ((capacity <= 0) || (active != null)) return;
+		FrameTrace t = new FrameTrace(capacity, base);
+		Thread thread = new Thread(t, "CBUS frame trace");
+		thread.setDaemon(true);
+		thread.start();
+		active = t;
+	}
+	
+	/**
+	 * Turn tracing off. Frames already in the ring are still logged.
+	 */
+	public static synchronized void stop() {
+		FrameTrace t = active;
+		active = null;
+		if (t != null) {
+			t.running = false;
+		}
+	}
+	
+	/**
+	 * @return true if tracing is on
+	 */
+	public static boolean isEnabled() {
+		return active != null;
+	}
+	
+	/**
+	 * Get the number of frames not traced because the formatter was too far behind.
+	 * @return the number of frames dropped by the current trace
+	 */
+	public static long getDroppedCount() {
+		FrameTrace t = active;
+		return (t == null) ? 0 : t.dropped.sum();
+	}
+	
+	/**
+	 * Trace a frame if tracing is on.
+	 * 
+	 * @param direction RX or TX
+	 * @param ce the message
+	 */
+	public static void trace(int direction, CbusEvent ce) {
+		FrameTrace t = active;
+		if (t != null) {
+			t.record(direction, ce);
+		}
+	}
+	
+	/**
+	 * Put the frame into the ring. Any thread may call this.
+	 */
+	private void record(int direction, CbusEvent ce) {
+		long seq;
+		do {
+			seq = claimed.get();
+			if (seq - consumed > mask) {
+				dropped.increment();
+				return;
+			}
+		} while (!claimed.compareAndSet(seq, seq+1));
+		int slot = (int)(seq & mask);
+		int i = slot * ENTRY;
+		entries[i] = CbusFrame.header(ce);
+		entries[i+1] = CbusFrame.payload(ce);
+		entries[i+2] = direction;
+		published.lazySet(slot, seq);
+	}
+	
+	/**
+	 * Format and log the frames as they are put into the ring.
+	 */
+	@Override
+	public void run() {
+		CbusEvent ce = new CbusEvent();
+		long next = consumed;
+		while (running || (next < claimed.get())) {
+			int slot = (int)(next & mask);
+			if (published.get(slot) != next) {
+				if (!running) break;
+				LockSupport.parkNanos(IDLE_NANOS);
+				continue;
+			}
+			int i = slot * ENTRY;
+			long header = entries[i];
+			long payload = entries[i+1];
+			boolean rx = entries[i+2] == RX;
+			consumed = ++next;
+			if (DRIVER_LOGGER.isLoggable(Level.INFO)) {
+				CbusFrame.toEvent(header, payload, ce);
+				logBuilder.setLength(0);
+				logBuilder.append(rx ? "< " : "> ");
+				DRIVER_LOGGER.log(Level.INFO, ce.dump(base, logBuilder).toString(), rx ? Color.GREEN : Color.ORANGE);
+			}
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.driver;
+
+/**
+ * Splits a stream of bytes into GridConnect frames. Bytes may be supplied in chunks of any size, 
+ * as returned by a socket or serial port read, and each complete frame from ':' to ';' is passed 
+ * to the FrameHandler. A frame which is split across reads is held over until the rest of it arrives.
+ * Bytes outside of a frame are ignored and a frame which is longer than MAX_FRAME_LEN is discarded.
+ * 
+ * @author ianh
+ *
+ */
+public class GridConnectFramer {
+	/** The longest frame accepted. An extended frame with 8 data bytes is 28 characters. */
+	public static final int MAX_FRAME_LEN = 64;
+	
+	/**
+	 * Receives each complete frame found by the GridConnectFramer.
+	 */
+	public interface FrameHandler {
+		/**
+		 * Called for each complete frame. The buffer is reused so must not be retained.
+		 * 
+		 * @param buf the buffer holding the frame
+		 * @param off index of the ':' starting the frame
+		 * @param len length of the frame including the ':' and ';'
+		 */
+		public void frameReceived(byte [] buf, int off, int len);
+	}
+	
+	private final FrameHandler handler;
+	private final byte [] frame;
+	private int len;
+	private boolean inFrame;
+	private long discarded;
+	
+	/**
+	 * Create a GridConnectFramer.
+	 * 
+	 * @param handler the handler to be called for each complete frame
+	 */
+	public GridConnectFramer(FrameHandler handler) {
+		this.handler = handler;
+		frame = new byte[MAX_FRAME_LEN];
+		len = 0;
+		inFrame = false;
+	}
+	
+	/**
+	 * Scan the bytes for frames, calling the FrameHandler for each complete frame.
+	 * 
+	 * @param buf the buffer containing the bytes read
+	 * @param off index of the first byte
+	 * @param count number of bytes
+	 */
+	public void feed(byte [] buf, int off, int count) {
+		int end = off + count;
+		for (int i=off; i<end; i++) {
+			byte b = buf[i];
+			if (b == ':') {
+				if (inFrame) discarded++;
+				inFrame = true;
+				len = 0;
+			} else if (! inFrame) {
+				continue;
+			}
+			if (len == MAX_FRAME_LEN) {
+				// too long so wait for the next start of frame
+				inFrame = false;
+				discarded++;
+				continue;
+			}
+			frame[len++] = b;
+			if (b == ';') {
+				inFrame = false;
+				handler.frameReceived(frame, 0, len);
+			}
+		}
+	}
+	
+	/**
+	 * Discard any partial frame, for example after a reconnection.
+	 */
+	public void reset() {
+		inFrame = false;
+		len = 0;
+	}
+	
+	/**
+	 * Get the number of partial or over-length frames which have been discarded.
+	 * @return number of discarded frames
+	 */
+	public long getDiscarded() {
+		return discarded;
+	}
+}
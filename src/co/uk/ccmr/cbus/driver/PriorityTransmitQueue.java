@@ -0,0 +1,533 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.driver;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import co.uk.ccmr.cbus.sniffer.CbusEvent;
+import co.uk.ccmr.cbus.sniffer.CbusEvent.MinPri;
+import co.uk.ccmr.cbus.sniffer.CbusEvent.MjPri;
+import co.uk.ccmr.cbus.sniffer.Opc;
+import co.uk.ccmr.cbus.util.OverflowPolicy;
+
+/**
+ * A transmit queue which orders CBUS messages the same way as CAN bus arbitration. Messages are taken
+ * in order of major priority then minor priority, lowest value first, and in the order they were queued 
+ * within a priority level. This allows a high priority message such as an emergency stop to overtake any 
+ * lower priority messages which are waiting.
+ * <p>
+ * Messages without a priority set are treated as the lowest priority.
+ * <p>
+ * The queue may be bounded, in which case the OverflowPolicy determines what happens when it is full:
+ * <UL>
+ * <LI>BLOCK - put() waits for space, offer() returns false.</LI>
+ * <LI>REJECT - the new message is refused.</LI>
+ * <LI>DROP_OLDEST - the oldest message of the lowest priority waiting is dropped. If every waiting message
+ * has a higher priority than the new message then the new message is refused instead.</LI>
+ * <LI>CONFLATE - a waiting message for the same thing is replaced by the new message, keeping its place 
+ * in the queue. Otherwise the new message is refused. Messages are conflated in this way even when the 
+ * queue is not full. Only messages which set a state are conflated: accessory ON and OFF events for the 
+ * same NN/EN (or NN/DN for short events), DSPD for the same session, DFUN for the same session and
+ * function range, and NVSET for the same NN and NV index. An ON followed by an OFF for the same event 
+ * therefore leaves only the OFF.</LI>
+ * </UL>
+ * Under any policy other than BLOCK, put() and submit() never block. A message they refuse is not 
+ * queued and is counted by getRejected(), and submit() returns false so the caller can tell.
+ * 
+ * @author ianh
+ *
+ */
+public class PriorityTransmitQueue extends AbstractQueue<CbusEvent> implements BlockingQueue<CbusEvent> {
+	/** The number of priority levels, one for each combination of MjPri and MinPri. */
+	public static final int LEVELS = MjPri.values().length * MinPri.values().length;
+	
+	private final ArrayDeque<CbusEvent> [] levels;
+	private final ReentrantLock lock;
+	private final Condition notEmpty;
+	private final Condition notFull;
+	private final int capacity;
+	private final OverflowPolicy policy;
+	/** For CONFLATE, the latest message for each key waiting in the queue */
+	private final Map<Long, CbusEvent> latest;
+	private int count;
+	private volatile long dropped;
+	private volatile long rejected;
+	
+	/**
+	 * Create an empty, unbounded PriorityTransmitQueue.
+	 */
+	public PriorityTransmitQueue() {
+		this(0, OverflowPolicy.BLOCK);
+	}
+	
+	/**
+	 * Create an empty PriorityTransmitQueue.
+	 * 
+	 * @param capacity the maximum number of messages, or 0 for unbounded
+	 * @param policy what to do when the queue is full
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public PriorityTransmitQueue(int capacity, OverflowPolicy policy) {
+		levels = new ArrayDeque[LEVELS];
+		for (int i=0; i<LEVELS; i++) {
+			levels[i] = new ArrayDeque<CbusEvent>();
+		}
+		this.capacity = (capacity <= 0) ? Integer.MAX_VALUE : capacity;
+		this.policy = (policy == null) ? OverflowPolicy.BLOCK : policy;
+		latest = (this.policy == OverflowPolicy.CONFLATE) ? new HashMap<Long, CbusEvent>() : null;
+		lock = new ReentrantLock();
+		notEmpty = lock.newCondition();
+		notFull = lock.newCondition();
+		count = 0;
+	}
+	
+	/**
+	 * Get the priority level of a message. Level 0 is the highest priority.
+	 * 
+	 * @param mjPri the major priority
+	 * @param minPri the minor priority
+	 * @return the level
+	 */
+	public static int level(MjPri mjPri, MinPri minPri) {
+		int mj = (mjPri == null) ? MjPri.LOW.getValue() : mjPri.getValue();
+		int min = (minPri == null) ? MinPri.LOW.getValue() : minPri.getValue();
+		return mj * MinPri.values().length + min;
+	}
+	
+	/** Conflation key families, so that different kinds of message never share a key */
+	private static final long LONG_EVENT = 1L << 32;
+	private static final long SHORT_EVENT = 2L << 32;
+	private static final long SPEED = 3L << 32;
+	private static final long FUNCTION = 4L << 32;
+	private static final long NV = 5L << 32;
+	
+	/**
+	 * Get the conflation key of a message. The key identifies what the message sets, not the value 
+	 * it sets it to, so the OPC and value bytes are left out where they differ between messages which
+	 * replace each other.
+	 * 
+	 * @param ce the message
+	 * @return the key, or null if the message is never conflated
+	 */
+	static Long key(CbusEvent ce) {
+		Opc opc = ce.getOpc();
+		if (opc == null) return null;
+		long k;
+		switch (opc) {
+		case ACON: case ACOF: case ACON1: case ACOF1: case ACON2: case ACOF2: case ACON3: case ACOF3:
+			k = LONG_EVENT | data(ce, 0, 4);
+			break;
+		case ASON: case ASOF: case ASON1: case ASOF1: case ASON2: case ASOF2: case ASON3: case ASOF3:
+			k = SHORT_EVENT | data(ce, 0, 4);
+			break;
+		case DSPD:
+			k = SPEED | data(ce, 0, 1);
+			break;
+		case DFUN:
+			// session and function range
+			k = FUNCTION | data(ce, 0, 2);
+			break;
+		case NVSET:
+			// NN and NV index
+			k = NV | data(ce, 0, 3);
+			break;
+		default:
+			return null;
+		}
+		return Long.valueOf(k);
+	}
+	
+	/**
+	 * Get data bytes of a message packed into a long, first byte most significant.
+	 */
+	private static long data(CbusEvent ce, int first, int n) {
+		long v = 0;
+		for (int i=first; i<first+n; i++) {
+			v = (v << 8) | (ce.getData(i) & 0xFF);
+		}
+		return v;
+	}
+	
+	/**
+	 * Get the message to be sent in place of a queued message, which is the latest conflated message.
+	 * Must be called with the lock held.
+	 * @param queued the message in the queue
+	 * @param remove whether to also remove the latest entry
+	 * @return the message to send
+	 */
+	private CbusEvent current(CbusEvent queued, boolean remove) {
+		if (latest == null) return queued;
+		Long k = key(queued);
+		if (k == null) return queued;
+		return remove ? latest.remove(k) : latest.get(k);
+	}
+	
+	/**
+	 * Get the number of messages waiting at a priority level.
+	 * 
+	 * @param mjPri the major priority
+	 * @param minPri the minor priority
+	 * @return the number of messages at that priority
+	 */
+	public int size(MjPri mjPri, MinPri minPri) {
+		lock.lock();
+		try {
+			return levels[level(mjPri, minPri)].size();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Get the number of messages waiting at each priority level.
+	 * 
+	 * @return array of LEVELS sizes indexed by level
+	 */
+	public int [] sizes() {
+		int [] ret = new int[LEVELS];
+		lock.lock();
+		try {
+			for (int i=0; i<LEVELS; i++) {
+				ret[i] = levels[i].size();
+			}
+		} finally {
+			lock.unlock();
+		}
+		return ret;
+	}
+	
+	/**
+	 * Get the number of messages which have been dropped or replaced by conflation.
+	 * @return number of dropped messages
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+	
+	/**
+	 * Get the number of messages which have been refused because the queue was full.
+	 * @return number of rejected messages
+	 */
+	public long getRejected() {
+		return rejected;
+	}
+	
+	/**
+	 * Remove the highest priority message. Must be called with the lock held and count > 0.
+	 * @return the message
+	 */
+	private CbusEvent dequeue() {
+		for (int i=0; i<LEVELS; i++) {
+			CbusEvent ce = levels[i].pollFirst();
+			if (ce != null) {
+				count--;
+				notFull.signal();
+				return current(ce, true);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Add the message, applying the overflow policy if full. Must be called with the lock held.
+	 * @param ce the message
+	 * @return true if the message was added, false if refused
+	 */
+	private boolean enqueue(CbusEvent ce) {
+		int level = level(ce.getMjPri(), ce.getMinPri());
+		if (latest != null) {
+			Long k = key(ce);
+			if (k != null) {
+				if (latest.containsKey(k)) {
+					latest.put(k, ce);
+					dropped++;
+					return true;
+				}
+				if (count >= capacity) {
+					rejected++;
+					return false;
+				}
+				latest.put(k, ce);
+			}
+		}
+		if (count >= capacity) {
+			if (policy != OverflowPolicy.DROP_OLDEST) {
+				rejected++;
+				return false;
+			}
+			int victim = LEVELS-1;
+			while (levels[victim].isEmpty()) victim--;
+			if (victim < level) {
+				// everything waiting is more important
+				rejected++;
+				return false;
+			}
+			levels[victim].pollFirst();
+			count--;
+			dropped++;
+		}
+		levels[level].addLast(ce);
+		count++;
+		notEmpty.signal();
+		return true;
+	}
+
+	@Override
+	public boolean offer(CbusEvent ce) {
+		if (ce == null) throw new NullPointerException();
+		lock.lock();
+		try {
+			return enqueue(ce);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void put(CbusEvent ce) throws InterruptedException {
+		submit(ce);
+	}
+	
+	/**
+	 * Add a message, waiting for space under the BLOCK policy and otherwise applying the overflow 
+	 * policy if the queue is full.
+	 * 
+	 * @param ce the message
+	 * @return true if the message was queued, false if it was refused
+	 * @throws InterruptedException if interrupted whilst waiting for space
+	 */
+	public boolean submit(CbusEvent ce) throws InterruptedException {
+		if (ce == null) throw new NullPointerException();
+		lock.lockInterruptibly();
+		try {
+			if (policy == OverflowPolicy.BLOCK) {
+				while (count >= capacity) {
+					notFull.await();
+				}
+			}
+			return enqueue(ce);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean offer(CbusEvent ce, long timeout, TimeUnit unit) throws InterruptedException {
+		if (ce == null) throw new NullPointerException();
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			if (policy == OverflowPolicy.BLOCK) {
+				while (count >= capacity) {
+					if (nanos <= 0) {
+						rejected++;
+						return false;
+					}
+					nanos = notFull.awaitNanos(nanos);
+				}
+			}
+			return enqueue(ce);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public CbusEvent take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (count == 0) {
+				notEmpty.await();
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public CbusEvent poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (count == 0) {
+				if (nanos <= 0) return null;
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public CbusEvent poll() {
+		lock.lock();
+		try {
+			return (count == 0) ? null : dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public CbusEvent peek() {
+		lock.lock();
+		try {
+			for (int i=0; i<LEVELS; i++) {
+				CbusEvent ce = levels[i].peekFirst();
+				if (ce != null) return current(ce, false);
+			}
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int remainingCapacity() {
+		lock.lock();
+		try {
+			return capacity - count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super CbusEvent> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super CbusEvent> c, int maxElements) {
+		if (c == this) throw new IllegalArgumentException();
+		lock.lock();
+		try {
+			int n = 0;
+			while ((n < maxElements) && (count > 0)) {
+				c.add(dequeue());
+				n++;
+			}
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	@Override
+	public boolean remove(Object o) {
+		lock.lock();
+		try {
+			for (int i=0; i<LEVELS; i++) {
+				Iterator<CbusEvent> it = levels[i].iterator();
+				while (it.hasNext()) {
+					CbusEvent queued = it.next();
+					if (current(queued, false) == o) {
+						it.remove();
+						current(queued, true);
+						count--;
+						notFull.signal();
+						return true;
+					}
+				}
+			}
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	@Override
+	public void clear() {
+		lock.lock();
+		try {
+			for (int i=0; i<LEVELS; i++) {
+				levels[i].clear();
+			}
+			if (latest != null) latest.clear();
+			count = 0;
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get an iterator over a snapshot of the queue in priority order.
+	 */
+	@Override
+	public Iterator<CbusEvent> iterator() {
+		List<CbusEvent> snapshot = new ArrayList<CbusEvent>();
+		lock.lock();
+		try {
+			for (int i=0; i<LEVELS; i++) {
+				for (CbusEvent queued : levels[i]) {
+					snapshot.add(current(queued, false));
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		return Collections.unmodifiableList(snapshot).iterator();
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.driver;
+
+import java.awt.Color;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import co.uk.ccmr.cbus.sniffer.CbusEvent;
+
+/**
+ * Decodes the frames found by a GridConnectFramer and publishes them to the driver's ReceiveRing
+ * for its CbusReceiveListeners. Frames which cannot be decoded are published as a String.
+ * The reader calls flush() after each read so the listeners are signalled once per read.
+ * 
+ * @author ianh
+ *
+ */
+public class ReceiveDispatcher implements GridConnectFramer.FrameHandler {
+	private ReceiveRing ring;
+	private int bus;
+	private DriverMetrics metrics;
+	/** Wall clock time taken at the start of each read */
+	private long baseMillis;
+	/** System.nanoTime() at the same moment as baseMillis */
+	private long baseNanos;
+	private static final  Logger DRIVER_LOGGER = Logger.getLogger("Driver");
+	
+	/**
+	 * Create a ReceiveDispatcher.
+	 * 
+	 * @param ring the ReceiveRing the listeners subscribe to
+	 * @param bus the bus number of the driver, recorded in each received message
+	 * @param metrics the driver's DriverMetrics which count the received frames
+	 */
+	public ReceiveDispatcher(ReceiveRing ring, int bus, DriverMetrics metrics) {
+		this.ring = ring;
+		this.bus = bus;
+		this.metrics = metrics;
+		baseMillis = System.currentTimeMillis();
+		baseNanos = System.nanoTime();
+	}
+
+	/**
+	 * Decode the frame and publish it for the listeners. The message is stamped with the time its 
+	 * terminating ; was processed and its sequence number in the ring. The wall clock time is 
+	 * worked out from the nanosecond reading so only one System.currentTimeMillis() is needed per read.
+	 */
+	@Override
+	public void frameReceived(byte[] buf, int off, int len) {
+		long nanos = System.nanoTime();
+		CbusEvent ce = new CbusEvent();
+		if (ce.decode(buf, off, len)) {
+			ce.setReceived(bus, ring.getPublishedCount(), nanos, baseMillis + (nanos - baseNanos) / 1000000);
+			metrics.frameReceived(ce, len, nanos);
+			FrameTrace.trace(FrameTrace.RX, ce);
+			ring.publish(ce);
+		} else {
+			metrics.frameReceived(null, len, nanos);
+			String input = new String(buf, off, len);
+			DRIVER_LOGGER.log(Level.WARNING, "Invalid frame "+input, Color.RED);
+			ring.publish(input);
+		}
+	}
+	
+	/**
+	 * Signal the listeners that the frames from a read have been published.
+	 */
+	public void flush() {
+		ring.signal();
+		baseMillis = System.currentTimeMillis();
+		baseNanos = System.nanoTime();
+	}
+}
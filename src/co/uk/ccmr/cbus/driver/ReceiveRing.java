@@ -0,0 +1,618 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.driver;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import co.uk.ccmr.cbus.CbusBatchListener;
+import co.uk.ccmr.cbus.CbusReceiveListener;
+import co.uk.ccmr.cbus.sniffer.CbusEvent;
+import co.uk.ccmr.cbus.util.LagPolicy;
+
+/**
+ * A fixed size ring of received messages between a driver's reader thread and its 
+ * CbusReceiveListeners, so that a slow listener does not hold up reading from the port.
+ * 
+ * The reader publishes each decoded CbusEvent, or the String of a frame which could not be decoded,
+ * into the next slot and then signals the listeners. Each listener has a Subscription holding the 
+ * sequence number of the last message it was given, and is called from its own Executor. Listeners
+ * without an Executor of their own share a single dispatch thread, each keeping its own place in 
+ * the ring.
+ * 
+ * A CbusBatchListener is given all the consecutive messages it has not yet seen in one call, 
+ * which is normally everything decoded from one read of the port.
+ * 
+ * When a listener falls a whole ring behind its LagPolicy decides whether the reader waits for it,
+ * it misses the overwritten messages or it is removed.
+ * 
+ * There must be only one thread publishing.
+ * 
+ * @author ianh
+ *
+ */
+public class ReceiveRing {
+	/** The number of slots used until configured */
+	public static final int DEFAULT_CAPACITY = 1024;
+	/** The most messages given to a CbusBatchListener in one call */
+	public static final int MAX_BATCH = 256;
+	/** How long the reader sleeps between checks when waiting for a listener to catch up */
+	private static final long WAIT_NANOS = 100000;
+	private static final Subscription [] NONE = new Subscription[0];
+	private static final  Logger LOGGER = Logger.getLogger(ReceiveRing.class.getName());
+	
+	private volatile Slots slots;
+	/** Sequence number of the last message published */
+	private volatile long published;
+	private volatile LagPolicy policy;
+	private volatile Subscription [] subscriptions;
+	private ExecutorService defaultExecutor;
+	/** The largest number of messages held for any listener */
+	private volatile int highWater;
+	/** Messages missed by SKIP listeners */
+	private final AtomicLong dropped;
+	/** Listeners removed by DISCONNECT */
+	private volatile int disconnectedCount;
+	
+	/**
+	 * The slots of the ring. Each slot records the sequence number of the message it holds so that a
+	 * Subscription can tell when the message it wants has been overwritten.
+	 */
+	private static final class Slots {
+		final int capacity;
+		final int mask;
+		final AtomicReferenceArray<Object> entries;
+		final AtomicLongArray seqs;
+		
+		Slots(int capacity) {
+			this.capacity = capacity;
+			mask = capacity - 1;
+			entries = new AtomicReferenceArray<Object>(capacity);
+			seqs = new AtomicLongArray(capacity);
+			for (int i=0; i<capacity; i++) {
+				seqs.set(i, -1);
+			}
+		}
+		
+		/**
+		 * Get the message with the sequence number.
+		 * @param seq the sequence number
+		 * @return the message or null if it has been overwritten
+		 */
+		Object get(long seq) {
+			int i = (int)seq & mask;
+			if (seqs.get(i) != seq) return null;
+			Object o = entries.get(i);
+			if (seqs.get(i) != seq) return null;
+			return o;
+		}
+		
+		/**
+		 * Put a message into its slot.
+		 * @param seq the sequence number
+		 * @param o the message
+		 */
+		void put(long seq, Object o) {
+			int i = (int)seq & mask;
+			seqs.set(i, -1);
+			entries.set(i, o);
+			seqs.set(i, seq);
+		}
+	}
+	
+	/**
+	 * Create a ReceiveRing with the default capacity where listeners which fall behind miss messages,
+	 * so the reader never waits.
+	 */
+	public ReceiveRing() {
+		this(DEFAULT_CAPACITY, LagPolicy.SKIP);
+	}
+	
+	/**
+	 * Create a ReceiveRing.
+	 * 
+	 * @param capacity the number of messages held, rounded up to a power of 2
+	 * @param policy what happens to listeners which fall behind, unless given their own policy
+	 */
+	public ReceiveRing(int capacity, LagPolicy policy) {
+		slots = new Slots(roundUp(capacity));
+		published = -1;
+		this.policy = policy;
+		subscriptions = NONE;
+		dropped = new AtomicLong();
+	}
+	
+	/**
+	 * Change the capacity and the default LagPolicy. Intended to be used before the reader is started
+	 * as any messages not yet given to the listeners are discarded if the capacity changes.
+	 * 
+	 * @param capacity the number of messages held, rounded up to a power of 2
+	 * @param policy what happens to listeners which fall behind, unless given their own policy
+	 */
+	public synchronized void configure(int capacity, LagPolicy policy) {
+		this.policy = policy;
+		capacity = roundUp(capacity);
+		if (capacity == slots.capacity) return;
+		slots = new Slots(capacity);
+		for (Subscription sub : subscriptions) {
+			sub.cursor = published;
+		}
+	}
+	
+	/**
+	 * Round up to a power of 2 of at least 2.
+	 * @param n the requested size
+	 * @return the size to use
+	 */
+	private static int roundUp(int n) {
+		int c = 2;
+		while (c < n) c <<= 1;
+		return c;
+	}
+	
+	/**
+	 * Get the number of messages the ring holds.
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return slots.capacity;
+	}
+	
+	/**
+	 * Get the policy used for listeners which were not given their own.
+	 * @return the policy
+	 */
+	public LagPolicy getPolicy() {
+		return policy;
+	}
+	
+	/**
+	 * Get the number of messages published since the ring was created.
+	 * @return number of messages
+	 */
+	public long getPublishedCount() {
+		return published + 1;
+	}
+	
+	/**
+	 * Get the number of messages published but not yet given to the slowest listener, which is
+	 * the depth of the ring. Messages a SKIP listener has already lost are not included.
+	 * @return the largest lag, at most the capacity
+	 */
+	public int getLag() {
+		long lag = 0;
+		for (Subscription sub : subscriptions) {
+			lag = Math.max(lag, sub.getLag());
+		}
+		return (int)Math.min(lag, slots.capacity);
+	}
+	
+	/**
+	 * Get the largest depth of the ring seen when a message was published.
+	 * @return the high water mark
+	 */
+	public int getHighWaterMark() {
+		return highWater;
+	}
+	
+	/**
+	 * Get the total number of messages missed by listeners using LagPolicy.SKIP, including
+	 * listeners which have since been removed.
+	 * @return the number of dropped messages
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+	
+	/**
+	 * Get the number of listeners removed by LagPolicy.DISCONNECT.
+	 * @return number of listeners
+	 */
+	public int getDisconnectedCount() {
+		return disconnectedCount;
+	}
+	
+	/**
+	 * Add a listener which is called from the shared dispatch thread using the ring's LagPolicy.
+	 * 
+	 * @param crl the listener
+	 * @return the listener's Subscription
+	 */
+	public Subscription subscribe(CbusReceiveListener crl) {
+		return subscribe(crl, null, null);
+	}
+	
+	/**
+	 * Add a listener.
+	 * 
+	 * @param crl the listener
+	 * @param executor used to call the listener or null for the shared dispatch thread
+	 * @param lagPolicy what happens if the listener falls behind or null to use the ring's policy
+	 * @return the listener's Subscription, or the existing one if the listener is already subscribed
+	 */
+	public synchronized Subscription subscribe(CbusReceiveListener crl, Executor executor, LagPolicy lagPolicy) {
+		Subscription existing = getSubscription(crl);
+		if (existing != null) return existing;
+		if (executor == null) executor = getDefaultExecutor();
+		Subscription sub = new Subscription(this, crl, executor, lagPolicy);
+		sub.cursor = published;
+		Subscription [] subs = new Subscription[subscriptions.length+1];
+		System.arraycopy(subscriptions, 0, subs, 0, subscriptions.length);
+		subs[subscriptions.length] = sub;
+		subscriptions = subs;
+		return sub;
+	}
+	
+	/**
+	 * Remove a listener. Any call to the listener in progress is allowed to finish.
+	 * 
+	 * @param crl the listener
+	 */
+	public void unsubscribe(CbusReceiveListener crl) {
+		Subscription sub = getSubscription(crl);
+		if (sub != null) remove(sub);
+	}
+	
+	/**
+	 * Get the Subscription of a listener.
+	 * 
+	 * @param crl the listener
+	 * @return the Subscription or null if the listener is not subscribed
+	 */
+	public Subscription getSubscription(CbusReceiveListener crl) {
+		for (Subscription sub : subscriptions) {
+			if (sub.listener == crl) return sub;
+		}
+		return null;
+	}
+	
+	/**
+	 * Get the current Subscriptions.
+	 * @return a copy of the Subscriptions
+	 */
+	public Subscription [] getSubscriptions() {
+		return subscriptions.clone();
+	}
+	
+	/**
+	 * Put a message into the next slot. The listeners are not told until signal() is called so that
+	 * the messages from one read can be published together. 
+	 * 
+	 * If a listener using LagPolicy.BLOCK has not yet been given the message in the slot then this
+	 * waits for it, unless the calling thread is interrupted.
+	 * 
+	 * @param o the CbusEvent or the String of a frame which could not be decoded
+	 */
+	public void publish(Object o) {
+		Slots s = slots;
+		long next = published + 1;
+		long depth = 0;
+		for (Subscription sub : subscriptions) {
+			long lag = next - sub.cursor;
+			if (lag > sub.maxLag) sub.maxLag = lag;
+			if (lag > depth) depth = lag;
+			if (lag <= s.capacity) continue;
+			switch (sub.getPolicy()) {
+			case BLOCK:
+				waitFor(sub, next - s.capacity);
+				break;
+			case DISCONNECT:
+				LOGGER.warning("Removing listener "+sub.listener+" which is "+lag+" messages behind");
+				sub.disconnected = true;
+				disconnectedCount++;
+				remove(sub);
+				break;
+			case SKIP:
+				// the Subscription notices that it has been overtaken
+				break;
+			}
+		}
+		s.put(next, o);
+		published = next;
+		depth = Math.min(depth, s.capacity);
+		if (depth > highWater) highWater = (int)depth;
+	}
+	
+	/**
+	 * Tell the listeners that messages have been published.
+	 */
+	public void signal() {
+		for (Subscription sub : subscriptions) {
+			sub.schedule();
+		}
+	}
+	
+	/**
+	 * Wait for a listener to be given a message.
+	 * @param sub the listener's Subscription
+	 * @param seq the sequence number of the message
+	 */
+	private void waitFor(Subscription sub, long seq) {
+		sub.blockedCount++;
+		sub.schedule();
+		while ((sub.cursor < seq) && sub.active) {
+			if (Thread.currentThread().isInterrupted()) return;
+			LockSupport.parkNanos(WAIT_NANOS);
+		}
+	}
+	
+	/**
+	 * Remove a Subscription.
+	 * @param sub the Subscription
+	 */
+	private synchronized void remove(Subscription sub) {
+		sub.active = false;
+		Subscription [] old = subscriptions;
+		for (int i=0; i<old.length; i++) {
+			if (old[i] == sub) {
+				Subscription [] subs = (old.length == 1) ? NONE : new Subscription[old.length-1];
+				System.arraycopy(old, 0, subs, 0, i);
+				System.arraycopy(old, i+1, subs, i, old.length-i-1);
+				subscriptions = subs;
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Get the dispatch thread shared by listeners without their own Executor, creating it if needed.
+	 * @return the Executor
+	 */
+	private synchronized Executor getDefaultExecutor() {
+		if (defaultExecutor == null) {
+			defaultExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "CBUS receive dispatch");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return defaultExecutor;
+	}
+	
+	/**
+	 * A listener's position in the ring along with how it is keeping up. The Subscription is run by 
+	 * the listener's Executor whenever messages have been published, and calls the listener for each
+	 * message it has not yet been given.
+	 */
+	public static final class Subscription implements Runnable {
+		private final ReceiveRing ring;
+		private final CbusReceiveListener listener;
+		private final Executor executor;
+		private final LagPolicy lagPolicy;
+		private final AtomicBoolean scheduled;
+		/** Collects the messages for a CbusBatchListener, null for other listeners */
+		private final CbusEvent [] batch;
+		/** Sequence number of the last message given to the listener */
+		private volatile long cursor;
+		private volatile boolean active;
+		private volatile boolean disconnected;
+		private volatile long delivered;
+		private volatile long skipped;
+		private volatile long maxLag;
+		private volatile long blockedCount;
+		
+		private Subscription(ReceiveRing ring, CbusReceiveListener listener, Executor executor, LagPolicy lagPolicy) {
+			this.ring = ring;
+			this.listener = listener;
+			this.executor = executor;
+			this.lagPolicy = lagPolicy;
+			scheduled = new AtomicBoolean(false);
+			batch = (listener instanceof CbusBatchListener) ? new CbusEvent[MAX_BATCH] : null;
+			active = true;
+		}
+		
+		/**
+		 * Get the listener.
+		 * @return the listener
+		 */
+		public CbusReceiveListener getListener() {
+			return listener;
+		}
+		
+		/**
+		 * Get what happens if the listener falls behind.
+		 * @return the policy
+		 */
+		public LagPolicy getPolicy() {
+			return (lagPolicy != null) ? lagPolicy : ring.policy;
+		}
+		
+		/**
+		 * Get the number of published messages not yet given to the listener.
+		 * @return the lag
+		 */
+		public long getLag() {
+			return active ? Math.max(0, ring.published - cursor) : 0;
+		}
+		
+		/**
+		 * Get the largest lag seen when a message was published.
+		 * @return the maximum lag
+		 */
+		public long getMaxLag() {
+			return maxLag;
+		}
+		
+		/**
+		 * Get the number of messages given to the listener.
+		 * @return number of messages
+		 */
+		public long getDelivered() {
+			return delivered;
+		}
+		
+		/**
+		 * Get the number of messages the listener missed because they were overwritten.
+		 * @return number of messages
+		 */
+		public long getSkipped() {
+			return skipped;
+		}
+		
+		/**
+		 * Get the number of times the reader had to wait for the listener.
+		 * @return number of waits
+		 */
+		public long getBlockedCount() {
+			return blockedCount;
+		}
+		
+		/**
+		 * Indicates if the listener was removed because it fell behind.
+		 * @return true if disconnected by its LagPolicy
+		 */
+		public boolean isDisconnected() {
+			return disconnected;
+		}
+		
+		/**
+		 * Indicates if the listener is still subscribed.
+		 * @return true if subscribed
+		 */
+		public boolean isActive() {
+			return active;
+		}
+		
+		/**
+		 * Get the Subscription run by its Executor, unless it is already waiting to run or running.
+		 */
+		void schedule() {
+			if (active && !scheduled.get() && scheduled.compareAndSet(false, true)) {
+				try {
+					executor.execute(this);
+				} catch (RejectedExecutionException e) {
+					scheduled.set(false);
+					LOGGER.log(Level.WARNING, "Executor refused listener "+listener, e);
+				}
+			}
+		}
+		
+		/**
+		 * Give the listener all the messages published so far. This is one dispatch cycle.
+		 */
+		@Override
+		public void run() {
+			while (true) {
+				drain();
+				scheduled.set(false);
+				// check again in case messages were published after the drain but before the flag was cleared
+				if (!active || (ring.published == cursor) || !scheduled.compareAndSet(false, true)) return;
+			}
+		}
+		
+		/**
+		 * Call the listener for each message not yet given to it.
+		 */
+		private void drain() {
+			Slots s = ring.slots;
+			long end = ring.published;
+			long seq = cursor + 1;
+			int n = 0;
+			while ((seq <= end) && active) {
+				Object o = s.get(seq);
+				if (o == null) {
+					deliverBatch(n, seq - 1);
+					n = 0;
+					// overwritten, carry on from the oldest message still in the ring
+					long oldest = Math.max(seq + 1, ring.published - s.capacity + 1);
+					skipped += oldest - seq;
+					ring.dropped.addAndGet(oldest - seq);
+					seq = oldest;
+					cursor = seq - 1;
+					continue;
+				}
+				if ((batch != null) && (o instanceof CbusEvent)) {
+					batch[n++] = (CbusEvent)o;
+					if (n == batch.length) {
+						deliverBatch(n, seq);
+						n = 0;
+					}
+					seq++;
+					continue;
+				}
+				deliverBatch(n, seq - 1);
+				n = 0;
+				try {
+					if (o instanceof CbusEvent) {
+						listener.receiveMessage((CbusEvent)o);
+					} else {
+						listener.receiveString((String)o);
+					}
+				} catch (RuntimeException e) {
+					LOGGER.log(Level.WARNING, "Listener "+listener+" failed", e);
+				}
+				delivered++;
+				cursor = seq++;
+			}
+			deliverBatch(n, seq - 1);
+		}
+		
+		/**
+		 * Give the collected messages to a CbusBatchListener.
+		 * @param n the number of messages in the batch
+		 * @param last the sequence number of the last message in the batch
+		 */
+		private void deliverBatch(int n, long last) {
+			if (n == 0) return;
+			try {
+				((CbusBatchListener)listener).receiveMessages(batch, n);
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Listener "+listener+" failed", e);
+			}
+			Arrays.fill(batch, 0, n, null);
+			delivered += n;
+			cursor = last;
+		}
+	}
+}
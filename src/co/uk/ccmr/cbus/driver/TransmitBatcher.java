@@ -0,0 +1,207 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.driver;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import co.uk.ccmr.cbus.sniffer.CbusEvent;
+
+/**
+ * Collects the CBUS messages waiting on a transmit queue into a single reused byte buffer so that 
+ * they can be sent using one write to the port. The number of messages in a batch, their bus time 
+ * and the time spent waiting for further messages are limited.
+ * 
+ * @author ianh
+ *
+ */
+public class TransmitBatcher {
+	private final int maxFrames;
+	private final long maxDelayNanos;
+	private byte [] buffer;
+	private int length;
+	private CbusEvent [] events;
+	private int frames;
+	private int bits;
+	private volatile long writeCount;
+	private volatile long frameCount;
+	private volatile int lastBatchFrames;
+	
+	/**
+	 * Create a TransmitBatcher.
+	 * 
+	 * @param maxFrames the maximum number of messages in one batch
+	 * @param maxDelay the maximum time in milliseconds to wait for further messages once the first 
+	 * message of a batch has been taken. Zero means only take messages which are already queued.
+	 */
+	public TransmitBatcher(int maxFrames, long maxDelay) {
+		this.maxFrames = Math.max(1, maxFrames);
+		this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxDelay));
+		buffer = new byte[this.maxFrames * 32];
+		events = new CbusEvent[this.maxFrames];
+	}
+	
+	/**
+	 * Wait for a message on the queue then take it and as many more as the limits allow, encoding
+	 * them into the buffer.
+	 * 
+	 * @param q the transmit queue
+	 * @return the number of messages in the batch
+	 * @throws InterruptedException if interrupted whilst waiting for the first message
+	 */
+	public int fill(BlockingQueue<CbusEvent> q) throws InterruptedException {
+		return fill(q, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Wait for a message on the queue then take it and as many more as the limits allow, encoding
+	 * them into the buffer. No more messages are taken once the batch needs maxBits of bus time, so 
+	 * a higher priority message queued afterwards is not held up behind a long batch.
+	 * 
+	 * @param q the transmit queue
+	 * @param maxBits the most bus bits for the batch, see BusPacer.getBurstBits(). The first message 
+	 * is always taken.
+	 * @return the number of messages in the batch
+	 * @throws InterruptedException if interrupted whilst waiting for the first message
+	 */
+	public int fill(BlockingQueue<CbusEvent> q, int maxBits) throws InterruptedException {
+		for (int i=0; i<frames; i++) {
+			events[i] = null;
+		}
+		length = 0;
+		frames = 0;
+		bits = 0;
+		append(q.take());
+		long deadline = System.nanoTime() + maxDelayNanos;
+		while ((frames < maxFrames) && (bits < maxBits)) {
+			CbusEvent ce = q.poll();
+			if (ce == null) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) break;
+				ce = q.poll(remaining, TimeUnit.NANOSECONDS);
+				if (ce == null) break;
+			}
+			append(ce);
+		}
+		lastBatchFrames = frames;
+		return frames;
+	}
+	
+	/**
+	 * Add the message to the batch.
+	 * @param ce the message
+	 */
+	private void append(CbusEvent ce) {
+		int len = ce.encodedLength();
+		if (length + len > buffer.length) {
+			byte [] b = new byte[Math.max(buffer.length*2, length + len)];
+			System.arraycopy(buffer, 0, b, 0, length);
+			buffer = b;
+		}
+		length += ce.encodeTo(buffer, length);
+		events[frames++] = ce;
+		bits += BusPacer.frameBits(ce);
+	}
+	
+	/**
+	 * Record that the current batch has been written to the port.
+	 */
+	public void written() {
+		writeCount++;
+		frameCount += frames;
+	}
+	
+	/**
+	 * Get the buffer holding the encoded batch. The buffer is reused for the next batch.
+	 * @return the buffer
+	 */
+	public byte [] getBuffer() {
+		return buffer;
+	}
+	
+	/**
+	 * Get the number of bytes of the buffer used by the current batch.
+	 * @return the length of the batch in bytes
+	 */
+	public int getLength() {
+		return length;
+	}
+	
+	/**
+	 * Get the worst case number of CAN bus bits needed to send the current batch.
+	 * @return the number of bits
+	 */
+	public int getBits() {
+		return bits;
+	}
+	
+	/**
+	 * Get a message from the current batch.
+	 * @param idx index within the batch
+	 * @return the message
+	 */
+	public CbusEvent getEvent(int idx) {
+		return events[idx];
+	}
+	
+	/**
+	 * Get the number of messages in the last batch.
+	 * @return number of messages
+	 */
+	public int getLastBatchFrames() {
+		return lastBatchFrames;
+	}
+	
+	/**
+	 * Get the number of writes made.
+	 * @return number of writes
+	 */
+	public long getWriteCount() {
+		return writeCount;
+	}
+	
+	/**
+	 * Get the number of messages written.
+	 * @return number of messages
+	 */
+	public long getFrameCount() {
+		return frameCount;
+	}
+}
@@ -40,7 +40,6 @@
 package co.uk.ccmr.cbus.driver.fazecastSerial;
 
 import java.awt.Color;
-import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -49,22 +48,25 @@ import javax.swing.text.StyledDocument;
 
 import com.fazecast.jSerialComm.SerialPort;
 
-import co.uk.ccmr.cbus.CbusReceiveListener;
 import co.uk.ccmr.cbus.driver.CbusCommsState;
+import co.uk.ccmr.cbus.driver.GridConnectFramer;
+import co.uk.ccmr.cbus.driver.ReceiveDispatcher;
+import co.uk.ccmr.cbus.driver.ReceiveRing;
 import co.uk.ccmr.cbus.driver.TerminatingThread;
-import co.uk.ccmr.cbus.sniffer.CbusEvent;
-import co.uk.ccmr.cbus.sniffer.InvalidEventException;
 
 
 /**
- * Reads a Serial port calling the list of CbusReceiveListeners for each CBUS message received.
+ * Reads a Serial port publishing each CBUS message received to the ReceiveRing for the CbusReceiveListeners.
+ * All the bytes available are read at once into a reused buffer and split into frames by a GridConnectFramer.
  * 
  * @author ianh
  *
  */
 public class ReaderThread extends TerminatingThread {
+	/** The most bytes taken from the port in one read */
+	private static final int MAX_READ = 1024;
 	private SerialPort serialPort;
-	private List<CbusReceiveListener> listeners;
+	private ReceiveRing ring;
 	private FazecastSerialCbusDriver driver;
 	private static final  Logger LOGGER = Logger.getLogger(ReaderThread.class.getName());
 	private static final  Logger DRIVER_LOGGER = Logger.getLogger("Driver");
@@ -73,12 +75,12 @@ public class ReaderThread extends TerminatingThread {
 	 * Create a serial port ReaderThread. 
 	 * 
 	 * @param serialPort the serial port to be read.
-	 * @param listeners the list of CbusReceiveListeners to be called when a CBUS message is received
+	 * @param ring the ReceiveRing into which received CBUS messages are published for the listeners
 	 * @param log the StyledDocument to be used for logging
 	 */
-	public ReaderThread(FazecastSerialCbusDriver driver, SerialPort serialPort, List<CbusReceiveListener> listeners) {
+	public ReaderThread(FazecastSerialCbusDriver driver, SerialPort serialPort, ReceiveRing ring) {
 		this.serialPort = serialPort;
-		this.listeners = listeners;
+		this.ring = ring;
 		this.driver = driver;
 	}
 	
@@ -88,7 +90,8 @@ public class ReaderThread extends TerminatingThread {
 	@Override
 	public void run() {
 		System.out.println("SerialPort.ReaderThread starting serialport="+serialPort);
-		String input="";
+		ReceiveDispatcher dispatcher = new ReceiveDispatcher(ring, driver.getBus(), driver.getMetrics());
+		GridConnectFramer framer = new GridConnectFramer(dispatcher);
 		if (serialPort != null) {
 			DRIVER_LOGGER.info("READING from "+serialPort.getSystemPortName());
 		} else {
@@ -97,10 +100,12 @@ public class ReaderThread extends TerminatingThread {
 			return;
 		}
 
-		while (!terminate) {			
-   			byte[] inb = new byte[1];
-   			int cc = serialPort.readBytes(inb, 1);
-   			if (cc != 1){
+		byte[] inb = new byte[MAX_READ];
+		while (!terminate) {
+			// read everything which has arrived, or block for the next byte
+			int avail = serialPort.bytesAvailable();
+   			int cc = serialPort.readBytes(inb, avail > 0 ? Math.min(avail, MAX_READ) : 1);
+   			if (cc < 0){
    				DRIVER_LOGGER.log(Level.INFO, "Error reading from Serial Port "+serialPort.getSystemPortName(), Color.RED);
    				break;
    			}
@@ -113,31 +118,8 @@ public class ReaderThread extends TerminatingThread {
 				}
    				continue;
    			}
-				
-   			String c = new String(inb);
-   			System.out.println("Fazecast reader:"+c);
-   			if (":".equals(c)) {
-   				input = "";
-   			}
-   			input += c;
-   			if (";".equals(c)) {
-   				// Send event to the listeners
-   				CbusEvent ce;
-   				try {
-   					ce = new CbusEvent(input);
-   					for (CbusReceiveListener ml : listeners) {
-   						ml.receiveMessage(ce);
-   					}
-   					DRIVER_LOGGER.log(Level.INFO, "< "+ce.dump(16), Color.GREEN);
-   				} catch (InvalidEventException e) {
-   					System.err.println("input="+input);
-   					e.printStackTrace();
-   					for (CbusReceiveListener ml : listeners) {
-   						ml.receiveString(input);
-   					}
-   				}
-   				input = "";
-   			} 
+   			framer.feed(inb, 0, cc);
+   			dispatcher.flush();
     	}
 		System.out.println("SerialPort.ReaderThread terminating serialport="+serialPort);
 		driver.setCommsState(CbusCommsState.DISCONNECTED);
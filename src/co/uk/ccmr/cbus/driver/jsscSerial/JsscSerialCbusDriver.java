@@ -40,11 +40,10 @@
 package co.uk.ccmr.cbus.driver.jsscSerial;
 
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import jssc.SerialPort;
@@ -53,11 +52,21 @@ import jssc.SerialPortEventListener;
 import jssc.SerialPortException;
 import jssc.SerialPortList;
 import co.uk.ccmr.cbus.CbusReceiveListener;
+import co.uk.ccmr.cbus.CbusTransmitListener;
+import co.uk.ccmr.cbus.driver.BusPacer;
 import co.uk.ccmr.cbus.driver.CbusCommsState;
 import co.uk.ccmr.cbus.driver.CbusCommsStateListener;
 import co.uk.ccmr.cbus.driver.CbusDriver;
 import co.uk.ccmr.cbus.driver.CbusDriverException;
+import co.uk.ccmr.cbus.driver.PriorityTransmitQueue;
+import co.uk.ccmr.cbus.driver.DriverMetrics;
+import co.uk.ccmr.cbus.driver.FrameTrace;
+import co.uk.ccmr.cbus.driver.ReceiveRing;
+import co.uk.ccmr.cbus.driver.TransmitBatcher;
 import co.uk.ccmr.cbus.sniffer.CbusEvent;
+import co.uk.ccmr.cbus.sniffer.CbusEvent.MinPri;
+import co.uk.ccmr.cbus.sniffer.CbusEvent.MjPri;
+import co.uk.ccmr.cbus.util.LagPolicy;
 import co.uk.ccmr.cbus.util.Options;
 
 /**
@@ -68,16 +77,24 @@ import co.uk.ccmr.cbus.util.Options;
  *
  */
 public class JsscSerialCbusDriver implements SerialPortEventListener, CbusDriver {
-	private BlockingQueue<CbusEvent> writeQueue;
+	private PriorityTransmitQueue writeQueue;
 	private SerialPort serialPort;
 	private ReaderThread reader;
 	private WriterThread writer;
-	private List<CbusReceiveListener> listeners;
+	private TransmitBatcher batcher;
+	private BusPacer pacer;
+	private ReceiveRing ring;
+	private final DriverMetrics metrics = new DriverMetrics();
+	private int bus;
 	private Options options;
 	private CbusCommsState cbusCommsState;
 	private Set<CbusCommsStateListener> commsStateListeners;
+	private Set<CbusTransmitListener> transmitListeners;
 	private static final  Logger LOGGER = Logger.getLogger(ReaderThread.class.getName());
 	private static final  Logger DRIVER_LOGGER = Logger.getLogger("Driver");
+	/** The shortest time in seconds between warnings about refused messages */
+	private static final int REFUSED_WARNING_INTERVAL = 10;
+	private volatile long lastRefusedWarning = System.nanoTime() - TimeUnit.SECONDS.toNanos(REFUSED_WARNING_INTERVAL);
 	
 	/**
 	 * Creates the serial port driver.
@@ -85,8 +102,9 @@ public class JsscSerialCbusDriver implements SerialPortEventListener, CbusDriver
 	public JsscSerialCbusDriver() {
 		cbusCommsState = CbusCommsState.DISCONNECTED;
 		commsStateListeners = new HashSet<CbusCommsStateListener>();
-		writeQueue = new LinkedBlockingQueue<CbusEvent>();
-		listeners = new CopyOnWriteArrayList<CbusReceiveListener>();
+		transmitListeners = new CopyOnWriteArraySet<CbusTransmitListener>();
+		writeQueue = new PriorityTransmitQueue();
+		ring = new ReceiveRing();
 	}
 	
 	/**
@@ -97,14 +115,32 @@ public class JsscSerialCbusDriver implements SerialPortEventListener, CbusDriver
 	 * @param o the options
 	 */
 	public void init (int bus, Options o) {
+		this.bus = bus;
 		options = o;
+		ring.configure(options.getReaderRingSize(), options.getReaderLagPolicy());
+		FrameTrace.start(options.getFrameTraceSize(), options.getBase());
+		PriorityTransmitQueue q = new PriorityTransmitQueue(options.getWriterQueueCapacity(), options.getWriterQueuePolicy());
+		writeQueue.drainTo(q);
+		writeQueue = q;
+		batcher = new TransmitBatcher(options.getWriterBatchFrames(), options.getWriterBatchDelay());
+		pacer = new BusPacer(options.getBusUtilisation());
 		// create the threads
-		reader = new ReaderThread(this, serialPort, listeners);
+		reader = new ReaderThread(this, serialPort, ring);
 		reader.start();
-		writer = new WriterThread(this, serialPort, writeQueue, options);
+		writer = new WriterThread(this, serialPort, writeQueue, batcher, pacer, options);
 		writer.start();
 	}
 	
+	/**
+	 * Get the bus number given to init.
+	 * 
+	 * @return the bus number
+	 */
+	@Override
+	public int getBus() {
+		return bus;
+	}
+	
 	/**
 	 * Connect to the specified port.
 	 * 
@@ -152,9 +188,9 @@ public class JsscSerialCbusDriver implements SerialPortEventListener, CbusDriver
 		}
  
 		// create the threads
-		reader = new ReaderThread(this, serialPort, listeners);
+		reader = new ReaderThread(this, serialPort, ring);
 		reader.start();
-		writer = new WriterThread(this, serialPort, writeQueue, options);
+		writer = new WriterThread(this, serialPort, writeQueue, batcher, pacer, options);
 		writer.start();
 		setCommsState(CbusCommsState.CONNECTED);
 	}
@@ -188,7 +224,18 @@ public class JsscSerialCbusDriver implements SerialPortEventListener, CbusDriver
 	 * @param crl the listener
 	 */
 	public void addListener(CbusReceiveListener crl) {
-		listeners.add(crl);
+		ring.subscribe(crl);
+	}
+	
+	/**
+	 * Add a CBUS receive message listener called from its own Executor.
+	 * 
+	 * @param crl the listener
+	 * @param executor used to call the listener, or null for the shared dispatch thread
+	 * @param policy what happens if the listener falls behind, or null for the LagPolicy in the Options
+	 */
+	public void addListener(CbusReceiveListener crl, Executor executor, LagPolicy policy) {
+		ring.subscribe(crl, executor, policy);
 	}
 	
 	/**
@@ -197,21 +244,32 @@ public class JsscSerialCbusDriver implements SerialPortEventListener, CbusDriver
 	 * @param crl the listener
 	 */
 	public void removeListener(CbusReceiveListener crl) {
-		listeners.remove(crl);
+		ring.unsubscribe(crl);
 	}
 	
 	/**
 	 * Queue a CBUS event message to be transmitted.
 	 * 
+	 * If the transmit queue is full and the message is refused it is counted by getWriterRejectedCount()
+	 * and a warning is logged, at most once every REFUSED_WARNING_INTERVAL seconds.
+	 * 
 	 * @param ce the CBUS event message
+	 * @return true if the message was queued, false if it was refused
 	 */
-	public void queueForTransmit(CbusEvent ce) {
-		System.out.println("Serial > "+ce.dump(16));
+	public boolean queueForTransmit(CbusEvent ce) {
+		ce.setQueued(System.nanoTime());
 		try {
-			writeQueue.put(ce);
+			if (writeQueue.submit(ce)) return true;
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		long now = System.nanoTime();
+		if (now - lastRefusedWarning >= TimeUnit.SECONDS.toNanos(REFUSED_WARNING_INTERVAL)) {
+			lastRefusedWarning = now;
+			DRIVER_LOGGER.warning("Transmit queue full, "+writeQueue.getRejected()+" messages refused so far");
 		}
+		return false;
 	}
 
 
@@ -290,15 +348,83 @@ public class JsscSerialCbusDriver implements SerialPortEventListener, CbusDriver
 		commsStateListeners.remove(ccsl);
 	}
 
+	@Override
+	public void addTransmitListener(CbusTransmitListener ctl) {
+		transmitListeners.add(ctl);
+	}
+
+	@Override
+	public void removeTransmitListener(CbusTransmitListener ctl) {
+		transmitListeners.remove(ctl);
+	}
+
+	/**
+	 * Tell the transmit listeners about the messages of a batch which has been written.
+	 * Called by the WriterThread.
+	 * 
+	 * @param batcher the TransmitBatcher holding the batch
+	 */
+	public void messagesTransmitted(TransmitBatcher batcher) {
+		if (transmitListeners.isEmpty()) return;
+		for (CbusTransmitListener ctl : transmitListeners) {
+			for (int i=0; i<batcher.getLastBatchFrames(); i++) {
+				ctl.messageTransmitted(bus, batcher.getEvent(i));
+			}
+		}
+	}
+
 	/* STATISTICS */
 	@Override
 	public int getReaderQueueSize() {
-		// No reader queue
-		return 0;
+		return ring.getLag();
+	}
+	
+	@Override
+	public int getReaderQueueHighWaterMark() {
+		return ring.getHighWaterMark();
+	}
+	
+	@Override
+	public long getReaderDroppedCount() {
+		return ring.getDroppedCount();
+	}
+	
+	@Override
+	public ReceiveRing getReceiveRing() {
+		return ring;
+	}
+	
+	@Override
+	public DriverMetrics getMetrics() {
+		return metrics;
 	}
 
 	@Override
 	public int getWriterQueueSize() {
 		return writeQueue.size();
 	}
+	
+	@Override
+	public int getWriterQueueSize(MjPri mjPri, MinPri minPri) {
+		return writeQueue.size(mjPri, minPri);
+	}
+	
+	@Override
+	public long getWriterDroppedCount() {
+		return writeQueue.getDropped();
+	}
+	
+	@Override
+	public long getWriterRejectedCount() {
+		return writeQueue.getRejected();
+	}
+	
+	/**
+	 * Get the TransmitBatcher which reports how many messages have been sent in each write.
+	 * 
+	 * @return the TransmitBatcher, or null if the driver has not been initialised
+	 */
+	public TransmitBatcher getTransmitBatcher() {
+		return batcher;
+	}
 }
@@ -40,27 +40,29 @@
 package co.uk.ccmr.cbus.driver.jsscSerial;
 
 import java.awt.Color;
-import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import co.uk.ccmr.cbus.CbusReceiveListener;
 import co.uk.ccmr.cbus.driver.CbusCommsState;
+import co.uk.ccmr.cbus.driver.GridConnectFramer;
+import co.uk.ccmr.cbus.driver.ReceiveDispatcher;
+import co.uk.ccmr.cbus.driver.ReceiveRing;
 import co.uk.ccmr.cbus.driver.TerminatingThread;
-import co.uk.ccmr.cbus.sniffer.CbusEvent;
-import co.uk.ccmr.cbus.sniffer.InvalidEventException;
 import jssc.SerialPort;
 import jssc.SerialPortException;
 
 /**
- * Reads a Serial port calling the list of CbusReceiveListeners for each CBUS message received.
+ * Reads a Serial port publishing each CBUS message received to the ReceiveRing for the CbusReceiveListeners.
+ * All the bytes available are read at once and split into frames by a GridConnectFramer.
  * 
  * @author ianh
  *
  */
 public class ReaderThread extends TerminatingThread {
+	/** The most bytes taken from the port in one read */
+	private static final int MAX_READ = 1024;
 	private SerialPort serialPort;
-	private List<CbusReceiveListener> listeners;
+	private ReceiveRing ring;
 	private JsscSerialCbusDriver driver;
 	private static final  Logger LOGGER = Logger.getLogger(ReaderThread.class.getName());
 	private static final  Logger DRIVER_LOGGER = Logger.getLogger("Driver");
@@ -69,12 +71,12 @@ public class ReaderThread extends TerminatingThread {
 	 * Create a serial port ReaderThread. 
 	 * 
 	 * @param serialPort the serial port to be read.
-	 * @param listeners the list of CbusReceiveListeners to be called when a CBUS message is received
+	 * @param ring the ReceiveRing into which received CBUS messages are published for the listeners
 	 * @param log the StyledDocument to be used for logging
 	 */
-	public ReaderThread(JsscSerialCbusDriver driver, SerialPort serialPort, List<CbusReceiveListener> listeners) {
+	public ReaderThread(JsscSerialCbusDriver driver, SerialPort serialPort, ReceiveRing ring) {
 		this.serialPort = serialPort;
-		this.listeners = listeners;
+		this.ring = ring;
 		this.driver = driver;
 	}
 	
@@ -84,7 +86,8 @@ public class ReaderThread extends TerminatingThread {
 	@Override
 	public void run() {
 		System.out.println("SerialPort.ReaderThread starting serialport="+serialPort);
-		String input="";
+		ReceiveDispatcher dispatcher = new ReceiveDispatcher(ring, driver.getBus(), driver.getMetrics());
+		GridConnectFramer framer = new GridConnectFramer(dispatcher);
 
 		if (serialPort != null) {
 			DRIVER_LOGGER.info("READING from "+serialPort.getPortName());
@@ -95,34 +98,14 @@ public class ReaderThread extends TerminatingThread {
 		}
 
 		while (!terminate) {			
-   			byte[] inb;
 			try {
-				inb = serialPort.readBytes(1);
-				
-   				String c = new String(inb);
-   				if (":".equals(c)) {
-   					input = "";
-   				}
-   				input += c;
-   				if (";".equals(c)) {
-   					// Send event to the listeners
-   					CbusEvent ce;
-   					try {
-   						ce = new CbusEvent(input);
-   						for (CbusReceiveListener ml : listeners) {
-   							ml.receiveMessage(ce);
-   						}
-   						System.out.println("< "+ce.dump(16));
-   						DRIVER_LOGGER.log(Level.INFO,"< "+ce.dump(16), Color.GREEN);
-   					} catch (InvalidEventException e) {
-   						System.err.println("input="+input);
-   						e.printStackTrace();
-   						for (CbusReceiveListener ml : listeners) {
-   							ml.receiveString(input);
-   						}
-   					}
-   					input = "";
-   				} 
+				// read everything which has arrived, or block for the next byte
+				int avail = serialPort.getInputBufferBytesCount();
+				byte[] inb = serialPort.readBytes(avail > 0 ? Math.min(avail, MAX_READ) : 1);
+				if (inb != null) {
+					framer.feed(inb, 0, inb.length);
+					dispatcher.flush();
+				}
 			} catch (Exception e1) {
 				if (e1 instanceof SerialPortException) {
 					break;
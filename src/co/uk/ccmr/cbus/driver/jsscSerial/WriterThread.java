@@ -39,18 +39,24 @@
 */
 package co.uk.ccmr.cbus.driver.jsscSerial;
 
+import java.util.Arrays;
 import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import jssc.SerialPort;
 import jssc.SerialPortException;
+import co.uk.ccmr.cbus.driver.BusPacer;
 import co.uk.ccmr.cbus.driver.CbusCommsState;
+import co.uk.ccmr.cbus.driver.FrameTrace;
 import co.uk.ccmr.cbus.driver.TerminatingThread;
+import co.uk.ccmr.cbus.driver.TransmitBatcher;
 import co.uk.ccmr.cbus.sniffer.CbusEvent;
 import co.uk.ccmr.cbus.util.Options;
 
 /**
  * A WriterThread for writing queued messages to the physical serial port.
+ * All the messages waiting on the queue, up to the batcher's limits, are sent using a single write.
  * 
  * @author ianh
  *
@@ -58,6 +64,8 @@ import co.uk.ccmr.cbus.util.Options;
 public class WriterThread extends TerminatingThread {
 	private SerialPort serialPort;
 	private BlockingQueue<CbusEvent> q;
+	private TransmitBatcher batcher;
+	private BusPacer pacer;
 	private Options options;
 	private JsscSerialCbusDriver driver;
 	
@@ -68,12 +76,15 @@ public class WriterThread extends TerminatingThread {
 	 * Create the WriterThread.
 	 * @param serialPort the physical serial port
 	 * @param q the queue of messages to be transmitted
-	 * @param log the StyledDocument to be used for logging
+	 * @param batcher the TransmitBatcher used to collect messages into a single write
+	 * @param pacer the BusPacer limiting the rate of writes to the bus capacity
 	 * @param o the Options
 	 */
-	public WriterThread(JsscSerialCbusDriver driver, SerialPort serialPort, BlockingQueue<CbusEvent> q, Options o) {
+	public WriterThread(JsscSerialCbusDriver driver, SerialPort serialPort, BlockingQueue<CbusEvent> q, TransmitBatcher batcher, BusPacer pacer, Options o) {
 		this.serialPort = serialPort;
 		this.q = q;
+		this.batcher = batcher;
+		this.pacer = pacer;
 		this.driver = driver;
 		options = o;
 	}
@@ -94,18 +105,27 @@ public class WriterThread extends TerminatingThread {
 		
 		while (!terminate) {
 			try {
-				CbusEvent ce = q.take();
-				System.out.println("> "+ce.toString());
-				System.out.println("> "+ce.dump(16));
+				// wait for the previous batch to clear the bus before choosing the next so that 
+				// a higher priority message queued meanwhile goes first
+				pacer.awaitIdle();
+				int n = batcher.fill(q, pacer.getBurstBits());
 				try {
-					if (serialPort == null) {
-						DRIVER_LOGGER.info("> "+ce.toString());
-						DRIVER_LOGGER.info("> "+ce.dump(options.getBase()));
-					} else {
-						// not connected
-						DRIVER_LOGGER.info("> "+ce.toString());
-						DRIVER_LOGGER.info("> "+ce.dump(options.getBase()));
-						serialPort.writeString(ce.toString());
+					if (serialPort != null) {
+						pacer.pace(batcher.getBits());
+						byte [] bytes = Arrays.copyOf(batcher.getBuffer(), batcher.getLength());
+						long start = System.nanoTime();
+						serialPort.writeBytes(bytes);
+						driver.getMetrics().batchWritten(batcher, start, System.nanoTime());
+						if (FrameTrace.isEnabled()) {
+							for (int i=0; i<n; i++) {
+								FrameTrace.trace(FrameTrace.TX, batcher.getEvent(i));
+							}
+						}
+						driver.messagesTransmitted(batcher);
+						batcher.written();
+						if (DRIVER_LOGGER.isLoggable(Level.FINE)) {
+							DRIVER_LOGGER.fine("> wrote "+n+" messages in "+batcher.getLength()+" bytes");
+						}
 					}
 				} catch (SerialPortException e) {
 					// TODO Auto-generated catch block
@@ -0,0 +1,335 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.driver.replay;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+import co.uk.ccmr.cbus.CbusReceiveListener;
+import co.uk.ccmr.cbus.CbusTransmitListener;
+import co.uk.ccmr.cbus.capture.CaptureReader;
+import co.uk.ccmr.cbus.driver.CbusCommsState;
+import co.uk.ccmr.cbus.driver.CbusCommsStateListener;
+import co.uk.ccmr.cbus.driver.CbusDriver;
+import co.uk.ccmr.cbus.driver.CbusDriverException;
+import co.uk.ccmr.cbus.driver.DriverMetrics;
+import co.uk.ccmr.cbus.driver.FrameTrace;
+import co.uk.ccmr.cbus.driver.ReceiveRing;
+import co.uk.ccmr.cbus.sniffer.CbusEvent;
+import co.uk.ccmr.cbus.sniffer.CbusEvent.MinPri;
+import co.uk.ccmr.cbus.sniffer.CbusEvent.MjPri;
+import co.uk.ccmr.cbus.util.LagPolicy;
+import co.uk.ccmr.cbus.util.Options;
+
+/**
+ * A driver which plays back a capture instead of talking to a bus, so that the application, TcpServer
+ * and listeners can be load tested and profiled without any hardware. The port name given to connect 
+ * is either a compact capture file or the directory and prefix of a CaptureJournal's segments, for 
+ * example "captures/layout".
+ * <p>
+ * The captured messages are received in their original order with the original gaps between them
+ * divided by the replay speed from the Options, or as fast as possible if the speed is 0. Each message
+ * is stamped with this driver's bus, a new sequence number and the current System.nanoTime() so 
+ * latency can be measured, but keeps its original wall clock time. Messages from all the buses in the 
+ * capture are replayed.
+ * <p>
+ * Messages queued for transmit go nowhere but are passed to the transmit listeners. The captured 
+ * transmitted messages can also be passed to the transmit listeners if the Options ask for it.
+ * 
+ * @author ianh
+ *
+ */
+public class ReplayCbusDriver implements CbusDriver {
+	private ReceiveRing ring;
+	private final DriverMetrics metrics = new DriverMetrics();
+	private int bus;
+	private Options options;
+	private volatile CbusCommsState cbusCommsState;
+	private HashSet<CbusCommsStateListener> commsStateListeners;
+	private CopyOnWriteArraySet<CbusTransmitListener> transmitListeners;
+	private volatile ReplayThread replay;
+	private static final  Logger DRIVER_LOGGER = Logger.getLogger("Driver");
+	
+	/**
+	 * Create an instance of the replay driver.
+	 */
+	public ReplayCbusDriver() {
+		cbusCommsState = CbusCommsState.DISCONNECTED;
+		ring = new ReceiveRing();
+		commsStateListeners = new HashSet<CbusCommsStateListener>();
+		transmitListeners = new CopyOnWriteArraySet<CbusTransmitListener>();
+	}
+	
+	/**
+	 * Initialise the driver.
+	 * 
+	 * @param bus the bus number associated with this driver
+	 * @param o the options
+	 */
+	@Override
+	public void init(int bus, Options o) {
+		this.bus = bus;
+		options = o;
+		ring.configure(options.getReaderRingSize(), options.getReaderLagPolicy());
+		FrameTrace.start(options.getFrameTraceSize(), options.getBase());
+	}
+	
+	/**
+	 * Get the bus number given to init.
+	 * 
+	 * @return the bus number
+	 */
+	@Override
+	public int getBus() {
+		return bus;
+	}
+	
+	/**
+	 * Start replaying a capture.
+	 * 
+	 * @param portName a compact capture file, or the directory and prefix of a CaptureJournal's segments
+	 * @throws CbusDriverException if there is no such file and no segments with the prefix
+	 */
+	@Override
+	public void connect(String portName) throws CbusDriverException {
+		File capture = new File(portName);
+		if (!capture.isFile()) {
+			File dir = capture.getAbsoluteFile().getParentFile();
+			if ((dir == null) || (CaptureReader.listSegments(dir, capture.getName()).length == 0)) {
+				throw new CbusDriverException("No capture found at "+portName);
+			}
+		}
+		close();
+		ReplayThread r = new ReplayThread(this, capture, options.getReplaySpeed(), options.getReplayTransmit());
+		synchronized (this) {
+			replay = r;
+			setCbusCommsState(CbusCommsState.CONNECTED);
+		}
+		r.start();
+	}
+	
+	/**
+	 * Stop replaying.
+	 */
+	@Override
+	public void close() {
+		ReplayThread r;
+		synchronized (this) {
+			r = replay;
+			replay = null;
+		}
+		if (r != null) {
+			r.terminate();
+			r.interrupt();
+			try {
+				r.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		setCbusCommsState(CbusCommsState.DISCONNECTED);
+	}
+	
+	/**
+	 * Called by a ReplayThread when it stops. The driver is only disconnected if the thread is still 
+	 * the current replay, so one which was slow to stop cannot disconnect a later replay.
+	 * 
+	 * @param r the thread
+	 */
+	synchronized void replayFinished(ReplayThread r) {
+		if (replay == r) {
+			setCbusCommsState(CbusCommsState.DISCONNECTED);
+		}
+	}
+	
+	@Override
+	public void addListener(CbusReceiveListener crl) {
+		ring.subscribe(crl);
+	}
+	
+	@Override
+	public void addListener(CbusReceiveListener crl, Executor executor, LagPolicy policy) {
+		ring.subscribe(crl, executor, policy);
+	}
+	
+	@Override
+	public void removeListener(CbusReceiveListener crl) {
+		ring.unsubscribe(crl);
+	}
+	
+	/**
+	 * The message is not sent anywhere but is passed to the transmit listeners as if it had been written.
+	 * 
+	 * @param ce the CBUS event message
+	 * @return true if replaying, false if not connected
+	 */
+	@Override
+	public boolean queueForTransmit(CbusEvent ce) {
+		ce.setQueued(System.nanoTime());
+		if (getCbusCommsState() != CbusCommsState.CONNECTED) {
+			return false;
+		}
+		transmitted(ce);
+		return true;
+	}
+	
+	/**
+	 * Count a transmitted message and pass it to the transmit listeners. Called for messages queued 
+	 * for transmit and for replayed transmitted messages.
+	 * 
+	 * @param ce the message
+	 */
+	void transmitted(CbusEvent ce) {
+		long nanos = System.nanoTime();
+		metrics.frameWritten(ce, ce.encodedLength(), nanos, nanos);
+		FrameTrace.trace(FrameTrace.TX, ce);
+		for (CbusTransmitListener ctl : transmitListeners) {
+			ctl.messageTransmitted(bus, ce);
+		}
+	}
+	
+	/**
+	 * Get the number of captured messages replayed so far.
+	 * @return the number of messages, 0 if not replaying
+	 */
+	public long getReplayedCount() {
+		ReplayThread r = replay;
+		return (r == null) ? 0 : r.getReplayedCount();
+	}
+	
+	/**
+	 * Obtain a list of port names to be offered as a choice to the user.
+	 * These are obtained from the Options.
+	 */
+	@Override
+	public String[] getPortNames() {
+		return options.getPorts();
+	}
+	
+	/* COMMS STATE */
+	
+	@Override
+	public CbusCommsState getCbusCommsState() {
+		return cbusCommsState;
+	}
+	
+	public void setCbusCommsState(CbusCommsState cs) {
+		if (cbusCommsState != cs) {
+			cbusCommsState = cs;
+			DRIVER_LOGGER.info("Replay "+cs);
+			for (CbusCommsStateListener ccsl : commsStateListeners) {
+				ccsl.cbusCommsStateChanged(cs);
+			}
+		}
+	}
+	
+	@Override
+	public void addCbusCommsStateListener(CbusCommsStateListener ccsl) {
+		commsStateListeners.add(ccsl);
+	}
+	
+	@Override
+	public void removeCbusCommsStateListener(CbusCommsStateListener ccsl) {
+		commsStateListeners.remove(ccsl);
+	}
+	
+	@Override
+	public void addTransmitListener(CbusTransmitListener ctl) {
+		transmitListeners.add(ctl);
+	}
+	
+	@Override
+	public void removeTransmitListener(CbusTransmitListener ctl) {
+		transmitListeners.remove(ctl);
+	}
+	
+	/* STATISTICS */
+	@Override
+	public int getReaderQueueSize() {
+		return ring.getLag();
+	}
+	
+	@Override
+	public int getReaderQueueHighWaterMark() {
+		return ring.getHighWaterMark();
+	}
+	
+	@Override
+	public long getReaderDroppedCount() {
+		return ring.getDroppedCount();
+	}
+	
+	@Override
+	public ReceiveRing getReceiveRing() {
+		return ring;
+	}
+	
+	@Override
+	public DriverMetrics getMetrics() {
+		return metrics;
+	}
+	
+	@Override
+	public int getWriterQueueSize() {
+		// There is no write queue
+		return 0;
+	}
+	
+	@Override
+	public int getWriterQueueSize(MjPri mjPri, MinPri minPri) {
+		// There is no write queue
+		return 0;
+	}
+	
+	@Override
+	public long getWriterDroppedCount() {
+		// There is no write queue
+		return 0;
+	}
+	
+	@Override
+	public long getWriterRejectedCount() {
+		// There is no write queue
+		return 0;
+	}
+}
@@ -0,0 +1,254 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.driver.replay;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import co.uk.ccmr.cbus.capture.CaptureReader;
+import co.uk.ccmr.cbus.capture.CaptureRecord;
+import co.uk.ccmr.cbus.capture.CompactCaptureReader;
+import co.uk.ccmr.cbus.driver.DriverMetrics;
+import co.uk.ccmr.cbus.driver.FrameTrace;
+import co.uk.ccmr.cbus.driver.ReceiveRing;
+import co.uk.ccmr.cbus.driver.TerminatingThread;
+import co.uk.ccmr.cbus.sniffer.CbusEvent;
+import co.uk.ccmr.cbus.sniffer.CbusFrame;
+
+/**
+ * Plays the records of a capture to a ReplayCbusDriver, keeping the gaps between them divided by the
+ * replay speed. Received records are published to the driver's ReceiveRing as if they had been read 
+ * from a port and transmitted records are passed to the driver's transmit listeners if it asks for them.
+ * 
+ * @author ianh
+ *
+ */
+public class ReplayThread extends TerminatingThread {
+	/** Listeners are signalled at least this often when replaying as fast as possible */
+	private static final int MAX_BATCH = 256;
+	private static final  Logger DRIVER_LOGGER = Logger.getLogger("Driver");
+	
+	private final ReplayCbusDriver driver;
+	private final File capture;
+	private final ReceiveRing ring;
+	private final DriverMetrics metrics;
+	private final double speed;
+	private final boolean replayTransmit;
+	private volatile long replayed;
+	
+	/**
+	 * Create the ReplayThread.
+	 * 
+	 * @param driver the driver
+	 * @param capture a compact capture file, or the directory and prefix of a CaptureJournal's segments
+	 * @param speed the replay speed, 0 for as fast as possible
+	 * @param replayTransmit true to pass transmitted records to the transmit listeners
+	 */
+	public ReplayThread(ReplayCbusDriver driver, File capture, double speed, boolean replayTransmit) {
+		super();
+		setName("CBUS replay "+capture.getName());
+		setDaemon(true);
+		this.driver = driver;
+		this.capture = capture;
+		this.ring = driver.getReceiveRing();
+		this.metrics = driver.getMetrics();
+		this.speed = speed;
+		this.replayTransmit = replayTransmit;
+	}
+	
+	/**
+	 * A capture to be replayed, either format.
+	 */
+	private interface RecordSource {
+		boolean next(CaptureRecord r) throws IOException;
+		void close() throws IOException;
+	}
+	
+	/**
+	 * Reads each segment of a CaptureJournal in turn.
+	 */
+	private static class JournalSource implements RecordSource {
+		private final File [] segments;
+		private int segment;
+		private CaptureReader reader;
+		
+		JournalSource(File dir, String prefix) {
+			segments = CaptureReader.listSegments(dir, prefix);
+		}
+		
+		@Override
+		public boolean next(CaptureRecord r) throws IOException {
+			while (true) {
+				if (reader == null) {
+					if (segment == segments.length) return false;
+					reader = new CaptureReader(segments[segment++]);
+				}
+				if (reader.next(r)) return true;
+				reader.close();
+				reader = null;
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (reader != null) reader.close();
+		}
+	}
+	
+	/**
+	 * Reads a compact capture file.
+	 */
+	private static class CompactSource implements RecordSource {
+		private final CompactCaptureReader reader;
+		
+		CompactSource(File f) throws IOException {
+			reader = new CompactCaptureReader(new BufferedInputStream(new FileInputStream(f), 64 * 1024));
+		}
+		
+		@Override
+		public boolean next(CaptureRecord r) throws IOException {
+			return reader.next(r);
+		}
+		
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Open the capture.
+	 * @return the source of records
+	 * @throws IOException if the capture cannot be opened
+	 */
+	private RecordSource open() throws IOException {
+		if (capture.isFile()) {
+			return new CompactSource(capture);
+		}
+		File dir = capture.getAbsoluteFile().getParentFile();
+		return new JournalSource(dir, capture.getName());
+	}
+	
+	/**
+	 * Run this Thread to play the capture.
+	 */
+	@Override
+	public void run() {
+		DRIVER_LOGGER.info("Replaying "+capture+" at speed "+((speed > 0) ? speed : "max"));
+		RecordSource source = null;
+		try {
+			source = open();
+			CaptureRecord r = new CaptureRecord();
+			int bus = driver.getBus();
+			long start = 0;
+			long firstTime = 0;
+			int pending = 0;
+			while (!terminate && source.next(r)) {
+				if (replayed == 0) {
+					start = System.nanoTime();
+					firstTime = r.getTime();
+				}
+				if (speed > 0) {
+					long due = start + (long)((r.getTime() - firstTime) / speed);
+					long wait = due - System.nanoTime();
+					if (wait > 0) {
+						if (pending > 0) {
+							ring.signal();
+							pending = 0;
+						}
+						LockSupport.parkNanos(wait);
+					}
+				}
+				if (r.isRaw()) {
+					// a frame which could not be decoded is passed on as it was received
+					if (r.getDirection() == CaptureRecord.RX) {
+						ring.publish(new String(r.getRawBytes()));
+						if (++pending == MAX_BATCH) {
+							ring.signal();
+							pending = 0;
+						}
+					}
+					replayed++;
+					continue;
+				}
+				CbusEvent ce = CbusFrame.toEvent(r.getHeader(), r.getPayload());
+				if (r.getDirection() == CaptureRecord.RX) {
+					long nanos = System.nanoTime();
+					ce.setReceived(bus, ring.getPublishedCount(), nanos, r.getTime() / 1000000);
+					metrics.frameReceived(ce, ce.encodedLength(), nanos);
+					FrameTrace.trace(FrameTrace.RX, ce);
+					ring.publish(ce);
+					if (++pending == MAX_BATCH) {
+						ring.signal();
+						pending = 0;
+					}
+				} else if (replayTransmit) {
+					driver.transmitted(ce);
+				}
+				replayed++;
+			}
+			ring.signal();
+		} catch (IOException e) {
+			DRIVER_LOGGER.log(Level.WARNING, "Replay of "+capture+" failed", e);
+		} finally {
+			if (source != null) {
+				try {
+					source.close();
+				} catch (IOException e) {
+					// nothing more can be done
+				}
+			}
+		}
+		DRIVER_LOGGER.info("Replay of "+capture+" finished after "+replayed+" messages");
+		driver.replayFinished(this);
+	}
+	
+	/**
+	 * @return the number of records replayed so far
+	 */
+	public long getReplayedCount() {
+		return replayed;
+	}
+}
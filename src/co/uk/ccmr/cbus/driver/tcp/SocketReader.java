@@ -43,25 +43,24 @@ import java.awt.Color;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
-import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import co.uk.ccmr.cbus.CbusReceiveListener;
 import co.uk.ccmr.cbus.driver.CbusCommsState;
-import co.uk.ccmr.cbus.sniffer.CbusEvent;
-import co.uk.ccmr.cbus.sniffer.InvalidEventException;
+import co.uk.ccmr.cbus.driver.GridConnectFramer;
+import co.uk.ccmr.cbus.driver.ReceiveDispatcher;
+import co.uk.ccmr.cbus.driver.ReceiveRing;
 import co.uk.ccmr.cbus.util.Options;
 
 /**
- * A Runnable to read CBUS messages from a TCP socket and call the registered CbusReceiveListeners.
+ * A Runnable to read CBUS messages from a TCP socket and publish them for the registered CbusReceiveListeners.
  * 
  * @author ianh
  *
  */
 public class SocketReader extends Thread  {
 	private InputStream is;
-	private Set<CbusReceiveListener> listeners;
+	private ReceiveRing ring;
 	private TcpCbusDriver driver;
 	private static final  Logger LOGGER = Logger.getLogger(SocketReader.class.getName());
 	private static final  Logger DRIVER_LOGGER = Logger.getLogger("Driver");
@@ -71,22 +70,26 @@ public class SocketReader extends Thread  {
 	 * Create the SocketReader.
 	 * 
 	 * @param client the socket to be read
-	 * @param listeners the CbusReceiveListeners to be notified when a CBUS message is received on the socket
+	 * @param ring the ReceiveRing into which CBUS messages received on the socket are published for the listeners
 	 * @throws IOException if there is a communications failure
 	 */
-	public SocketReader(TcpCbusDriver driver, Socket client, Set<CbusReceiveListener> listeners, Options o) throws IOException {
+	public SocketReader(TcpCbusDriver driver, Socket client, ReceiveRing ring, Options o) throws IOException {
 		is = client.getInputStream();
-		this.listeners = listeners;
+		this.ring = ring;
 		this.driver = driver;
 	}
 
 	/**
-	 * Run the thread to read from the socket and call the CbusReceiveListeners.
+	 * Run the thread to read from the socket and publish the messages for the CbusReceiveListeners.
+	 * A read may return part of a frame or several frames so the bytes are passed through a 
+	 * GridConnectFramer.
 	 */
 	@Override
 	public void run() {
 		byte [] buffer;
 		buffer = new byte[1024];
+		ReceiveDispatcher dispatcher = new ReceiveDispatcher(ring, driver.getBus(), driver.getMetrics());
+		GridConnectFramer framer = new GridConnectFramer(dispatcher);
 
 		DRIVER_LOGGER.info("READING from TCP");
 		
@@ -98,25 +101,11 @@ public class SocketReader extends Thread  {
 				break;
 			}
 			if (cc <= 0) break;
-			String cmd = new String(buffer, 0, cc);
-			CbusEvent ce = null;
-			try {
-				ce = new CbusEvent(cmd);
-			} catch (InvalidEventException e) {
-				e.printStackTrace();
-			}
-			DRIVER_LOGGER.log(Level.INFO, "<"+ce.dump(16), Color.GREEN);
-			for (CbusReceiveListener l : listeners) {
-				l.receiveMessage(ce);
-			}
+			framer.feed(buffer, 0, cc);
+			dispatcher.flush();
 		}
 		driver.setCbusCommsState(CbusCommsState.DISCONNECTED);
 		DRIVER_LOGGER.log(Level.INFO, "Disconnected", Color.RED);
 	}
 
-	public int getQueueSize() {
-		// No receive queue
-		return 0;
-	}
-
 }
@@ -45,16 +45,26 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.HashSet;
-import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
 import java.util.logging.Logger;
 
 import co.uk.ccmr.cbus.CbusReceiveListener;
+import co.uk.ccmr.cbus.CbusTransmitListener;
+import co.uk.ccmr.cbus.driver.BusPacer;
 import co.uk.ccmr.cbus.driver.CbusCommsState;
 import co.uk.ccmr.cbus.driver.CbusCommsStateListener;
 import co.uk.ccmr.cbus.driver.CbusDriver;
 import co.uk.ccmr.cbus.driver.CbusDriverException;
+import co.uk.ccmr.cbus.driver.GridConnectFramer;
+import co.uk.ccmr.cbus.driver.DriverMetrics;
+import co.uk.ccmr.cbus.driver.FrameTrace;
+import co.uk.ccmr.cbus.driver.ReceiveRing;
 import co.uk.ccmr.cbus.driver.jsscSerial.ReaderThread;
 import co.uk.ccmr.cbus.sniffer.CbusEvent;
+import co.uk.ccmr.cbus.sniffer.CbusEvent.MinPri;
+import co.uk.ccmr.cbus.sniffer.CbusEvent.MjPri;
+import co.uk.ccmr.cbus.util.LagPolicy;
 import co.uk.ccmr.cbus.util.Options;
 
 /**
@@ -70,11 +80,17 @@ public class TcpCbusDriver implements CbusDriver {
 	private InetAddress ip;
 	private Socket client;
 	private OutputStream os;
-	private Set<CbusReceiveListener> listeners;
+	private ReceiveRing ring;
+	private final DriverMetrics metrics = new DriverMetrics();
+	private int bus;
 	private Options options;
 	private CbusCommsState cbusCommsState;
 	private HashSet<CbusCommsStateListener> commsStateListeners;
+	private CopyOnWriteArraySet<CbusTransmitListener> transmitListeners;
 	private SocketReader reader;
+	private BusPacer pacer;
+	/** The message being transmitted is encoded into here */
+	private final byte [] txBuffer = new byte[GridConnectFramer.MAX_FRAME_LEN];
 	private static final  Logger LOGGER = Logger.getLogger(ReaderThread.class.getName());
 	private static final  Logger DRIVER_LOGGER = Logger.getLogger("Driver");
 	
@@ -85,8 +101,9 @@ public class TcpCbusDriver implements CbusDriver {
 	public TcpCbusDriver() {
 		port = DEFAULT_PORT;
 		cbusCommsState = CbusCommsState.DISCONNECTED;
-		listeners = new HashSet<CbusReceiveListener>();
+		ring = new ReceiveRing();
 		commsStateListeners = new HashSet<CbusCommsStateListener>();		
+		transmitListeners = new CopyOnWriteArraySet<CbusTransmitListener>();
 	}
 	
 	/**
@@ -98,7 +115,21 @@ public class TcpCbusDriver implements CbusDriver {
 	 */
 	@Override
 	public void init(int bus, Options o) {
+		this.bus = bus;
 		options = o;
+		ring.configure(options.getReaderRingSize(), options.getReaderLagPolicy());
+		FrameTrace.start(options.getFrameTraceSize(), options.getBase());
+		pacer = new BusPacer(options.getBusUtilisation());
+	}
+	
+	/**
+	 * Get the bus number given to init.
+	 * 
+	 * @return the bus number
+	 */
+	@Override
+	public int getBus() {
+		return bus;
 	}
 
 	/**
@@ -147,7 +178,7 @@ public class TcpCbusDriver implements CbusDriver {
 		System.out.println("Socket connected to:"+portName);
 		// create the reader Thread
 		try {
-			reader = new SocketReader(this, client, listeners, options);
+			reader = new SocketReader(this, client, ring, options);
 		} catch (IOException e) {
 			throw new CbusDriverException(e);
 		}
@@ -184,9 +215,21 @@ public class TcpCbusDriver implements CbusDriver {
 	 */
 	@Override
 	public void addListener(CbusReceiveListener crl) {
-		listeners.add(crl);
+		ring.subscribe(crl);
 	}
 
+	/**
+	 * Add a CBUS receive message listener called from its own Executor.
+	 * 
+	 * @param crl the listener
+	 * @param executor used to call the listener, or null for the shared dispatch thread
+	 * @param policy what happens if the listener falls behind, or null for the LagPolicy in the Options
+	 */
+	@Override
+	public void addListener(CbusReceiveListener crl, Executor executor, LagPolicy policy) {
+		ring.subscribe(crl, executor, policy);
+	}
+	
 	/**
 	 * Remove a CbusReceiveLisrtener.
 	 * 
@@ -194,31 +237,42 @@ public class TcpCbusDriver implements CbusDriver {
 	 */
 	@Override
 	public void removeListener(CbusReceiveListener crl) {
-		listeners.remove(crl);
+		ring.unsubscribe(crl);
 	}
 
 	/**
 	 * Queue a CBUS event message for transmission. We don't actually queue it but try to send immediately.
+	 * As there is no queue, the caller is delayed if necessary to keep within the CAN bus capacity.
 	 * 
 	 * @param ce the CBUS event message
+	 * @return true if the message was sent, false if not connected or the write failed
 	 */
 	@Override
-	public void queueForTransmit(CbusEvent ce) {
-		System.out.println("TCP> "+ce.toString());
-		System.out.println("TCP> "+ce.dump(16));
+	public boolean queueForTransmit(CbusEvent ce) {
+		ce.setQueued(System.nanoTime());
 		if (getCbusCommsState() != CbusCommsState.CONNECTED) {
-			DRIVER_LOGGER.info("> "+ce.toString());
-			DRIVER_LOGGER.info("> "+ce.dump(options.getBase()));
-			return;
+			return false;
 		}
 		try {
-			DRIVER_LOGGER.info("> "+ce.toString());
-			DRIVER_LOGGER.info("> "+ce.dump(options.getBase()));			
-			os.write(ce.toString().getBytes());
+			pacer.pace(BusPacer.frameBits(ce));
+			synchronized (txBuffer) {
+				int n = ce.encodeTo(txBuffer, 0);
+				long start = System.nanoTime();
+				os.write(txBuffer, 0, n);
+				metrics.frameWritten(ce, n, start, System.nanoTime());
+			}
+			FrameTrace.trace(FrameTrace.TX, ce);
+			for (CbusTransmitListener ctl : transmitListeners) {
+				ctl.messageTransmitted(bus, ce);
+			}
+			return true;
 		} catch (IOException e) {
 			e.printStackTrace();
 			setCbusCommsState(CbusCommsState.DISCONNECTED);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
+		return false;
 	}
 
 	/**
@@ -256,10 +310,40 @@ public class TcpCbusDriver implements CbusDriver {
 		commsStateListeners.remove(ccsl);
 	}
 
+	@Override
+	public void addTransmitListener(CbusTransmitListener ctl) {
+		transmitListeners.add(ctl);
+	}
+
+	@Override
+	public void removeTransmitListener(CbusTransmitListener ctl) {
+		transmitListeners.remove(ctl);
+	}
+
 	/* STATISTICS */
 	@Override
 	public int getReaderQueueSize() {
-		return reader != null ? reader.getQueueSize() : 0;
+		return ring.getLag();
+	}
+	
+	@Override
+	public int getReaderQueueHighWaterMark() {
+		return ring.getHighWaterMark();
+	}
+	
+	@Override
+	public long getReaderDroppedCount() {
+		return ring.getDroppedCount();
+	}
+	
+	@Override
+	public ReceiveRing getReceiveRing() {
+		return ring;
+	}
+	
+	@Override
+	public DriverMetrics getMetrics() {
+		return metrics;
 	}
 
 	@Override
@@ -268,4 +352,22 @@ public class TcpCbusDriver implements CbusDriver {
 		return 0;
 	}
 
+	@Override
+	public int getWriterQueueSize(MjPri mjPri, MinPri minPri) {
+		// There is no write queue
+		return 0;
+	}
+
+	@Override
+	public long getWriterDroppedCount() {
+		// There is no write queue
+		return 0;
+	}
+
+	@Override
+	public long getWriterRejectedCount() {
+		// There is no write queue
+		return 0;
+	}
+
 }
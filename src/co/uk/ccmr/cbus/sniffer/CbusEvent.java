@@ -46,6 +46,10 @@ package co.uk.ccmr.cbus.sniffer;
  */
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 public class CbusEvent {
 	/**
@@ -110,6 +114,18 @@ public class CbusEvent {
 	private int extaddr;
 	private String extdata;
 	private boolean noOpc;
+	/** scratch space used when decoding from a direct ByteBuffer */
+	private byte[] scratch;
+	/** System.nanoTime() when received */
+	private long rxNanos;
+	/** Wall clock time in milliseconds when received */
+	private long rxMillis;
+	/** Sequence number of the frame on its bus, -1 if not received */
+	private long sequence = -1;
+	/** The bus the frame was received on */
+	private int bus;
+	/** System.nanoTime() when queued for transmit, 0 if not queued */
+	private long txQueuedNanos;
 	
 	/**
 	 * Simple constructor to allow building an event to be built ready to be transmitted.
@@ -171,9 +187,7 @@ public class CbusEvent {
 		}
 		if (extended) {
 			extdata = cmd.substring(idx);
-			System.out.println("new CbusEvent with extended data");
 		} else {
-			System.out.println("idx="+idx+"cmd.length="+cmd.length());
 			if (idx+2 < cmd.length()) {	// need 2 bytes for OPC
 				noOpc = false;
 				b1 = Util.getNum(cmd.charAt(++idx), cmd.charAt(++idx));
@@ -189,50 +203,213 @@ public class CbusEvent {
 				} catch (Exception e) {
 					throw new InvalidEventException(e.getMessage());
 				}
-				System.out.println("new CbusEvent data[0]="+data[0]+" data[1]="+data[1]+" data2="+data[2]+" data3="+data[3]);
 			} else {
 				noOpc = true;
-				System.out.println("new CAN ack");
 			}
 		}
 	}
 	
 	/**
-	 * Convert this event into a string ready to be transmitted.
+	 * Decode a GridConnect frame held in a region of a byte array into this event, replacing any
+	 * previous contents. This gives the same result as the CbusEvent(String) constructor but
+	 * does not create any Strings (other than for extended frames) or throw any exceptions, so a 
+	 * single CbusEvent may be reused for each received frame.
+	 * 
+	 * @param buf the buffer containing the ASCII frame starting with the ':'
+	 * @param off the index of the first byte of the frame
+	 * @param len the number of bytes in the frame
+	 * @return true if the frame was decoded, false if the frame is invalid
 	 */
-	@Override
-	public String toString() {
-		String ret;
+	public boolean decode(byte[] buf, int off, int len) {
+		opc = Opc.UNKNOWN;
+		can_id = 0;
+		mjPri = null;
+		minPri = null;
+		extended = false;
+		rtr = false;
+		extaddr = 0;
+		extdata = null;
+		noOpc = false;
+		Arrays.fill(data, 0);
+		
+		if (len < 7) return false;
+		int end = off + len;
+		int idx = off;
+		if (buf[idx] != ':') return false;
+		byte c = buf[++idx];
+		if (c == 'S') {
+			extended = false;
+		} else if (c == 'X') {
+			extended = true;
+		} else {
+			return false;
+		}
 		if (extended) {
-			ret = ":X";
-			ret += Util.intToHex(extaddr, 8);
+			if (idx+9 >= end) return false;
+			for (int i=0; i<8; i++) {
+				extaddr = (extaddr << 4) | Util.hexValue(buf[++idx]);
+			}
 		} else {
-			ret = ":S";
-			ret += Util.byteToHex(getSIDH());
-			ret += Util.byteToHex(getSIDL());
+			int sidh = Util.getNum(buf, ++idx);
+			idx++;
+			int v = (sidh >> 6) & 0x03;
+			if (v > MjPri.LOW.getValue()) return false;
+			setSIDH(sidh);
+			setSIDL(Util.getNum(buf, ++idx));
+			idx++;
 		}
-		
-		if (rtr) {
-			ret += "R";
+		c = buf[++idx];
+		if (c == 'N') {
+			rtr = false;
+		} else if (c == 'R') {
+			rtr = true;
 		} else {
-			ret +=  "N";
+			return false;
 		}
 		if (extended) {
-			ret += extdata;
+			extdata = new String(buf, idx, end-idx, StandardCharsets.US_ASCII);
 		} else {
-			if (! noOpc) {
-				if (opc == Opc.UNKNOWN) {
-					ret += "??";
-				} else {
-					ret += Util.byteToHex(opc.getValue());
+			if (idx+2 < end) {	// need 2 bytes for OPC
+				noOpc = false;
+				opc = Opc.of(Util.getNum(buf, idx+1));
+				if (opc == null) opc = Opc.UNKNOWN;
+				idx += 3;
+				int l = getLen();
+				if (idx + 2*l > end) return false;
+				for (int i=0; i<l; i++) {
+					data[i] = Util.getNum(buf, idx);
+					idx += 2;
 				}
-				for (int i=0; i<getLen(); i++) {
-					ret += Util.byteToHex(data[i]);
+			} else {
+				noOpc = true;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Decode a GridConnect frame held in the remaining bytes of a ByteBuffer into this event, replacing 
+	 * any previous contents. The position and limit of the buffer are not changed.
+	 * 
+	 * @param bb the buffer whose remaining bytes are the ASCII frame
+	 * @return true if the frame was decoded, false if the frame is invalid
+	 * @see #decode(byte[], int, int)
+	 */
+	public boolean decode(ByteBuffer bb) {
+		if (bb.hasArray()) {
+			return decode(bb.array(), bb.arrayOffset()+bb.position(), bb.remaining());
+		}
+		int len = bb.remaining();
+		if ((scratch == null) || (scratch.length < len)) {
+			scratch = new byte[len];
+		}
+		int pos = bb.position();
+		for (int i=0; i<len; i++) {
+			scratch[i] = bb.get(pos+i);
+		}
+		return decode(scratch, 0, len);
+	}
+	
+	/**
+	 * Convert this event into the string which would be transmitted. This is intended for debugging, 
+	 * use encodeTo() when transmitting.
+	 */
+	@Override
+	public String toString() {
+		byte [] b = new byte[encodedLength()];
+		int n = encodeTo(b, 0);
+		return new String(b, 0, n, StandardCharsets.US_ASCII);
+	}
+	
+	/**
+	 * Get the number of bytes encodeTo() will write for this event.
+	 * @return the encoded length
+	 */
+	public int encodedLength() {
+		if (extended) {
+			return 10 + ((extdata == null) ? 0 : extdata.length());
+		}
+		if (noOpc) return 8;
+		return 10 + 2*getLen();
+	}
+	
+	/**
+	 * Encode this event as an ASCII GridConnect frame ready to be transmitted.
+	 * 
+	 * @param buf the buffer to write into
+	 * @param off index at which to write the frame
+	 * @return the number of bytes written
+	 * @throws ArrayIndexOutOfBoundsException if there are fewer than encodedLength() bytes available
+	 */
+	public int encodeTo(byte [] buf, int off) {
+		byte [] hex = Util.HEX_DIGITS;
+		int idx = off;
+		buf[idx++] = ':';
+		if (extended) {
+			buf[idx++] = 'X';
+			for (int shift=28; shift>=0; shift-=4) {
+				buf[idx++] = hex[(extaddr >> shift) & 0x0F];
+			}
+			// the extended data starts with the N or R
+			if (extdata != null) {
+				for (int i=0; i<extdata.length(); i++) {
+					buf[idx++] = (byte)extdata.charAt(i);
 				}
 			}
-			ret += ";";
+			return idx - off;
+		}
+		buf[idx++] = 'S';
+		int b = getSIDH();
+		buf[idx++] = hex[b >> 4];
+		buf[idx++] = hex[b & 0x0F];
+		b = getSIDL();
+		buf[idx++] = hex[b >> 4];
+		buf[idx++] = hex[b & 0x0F];
+		buf[idx++] = (byte)(rtr ? 'R' : 'N');
+		if (! noOpc) {
+			if (opc == Opc.UNKNOWN) {
+				buf[idx++] = '?';
+				buf[idx++] = '?';
+			} else {
+				b = opc.getValue();
+				buf[idx++] = hex[b >> 4];
+				buf[idx++] = hex[b & 0x0F];
+			}
+			int l = getLen();
+			for (int i=0; i<l; i++) {
+				b = data[i];
+				buf[idx++] = hex[(b >> 4) & 0x0F];
+				buf[idx++] = hex[b & 0x0F];
+			}
+		}
+		buf[idx++] = ';';
+		return idx - off;
+	}
+	
+	/**
+	 * Encode this event as an ASCII GridConnect frame into a ByteBuffer at its current position, 
+	 * advancing the position.
+	 * 
+	 * @param bb the buffer to write into
+	 * @return the number of bytes written
+	 * @throws BufferOverflowException if there are fewer than encodedLength() bytes remaining
+	 */
+	public int encodeTo(ByteBuffer bb) {
+		int len = encodedLength();
+		if (bb.remaining() < len) throw new BufferOverflowException();
+		int n;
+		if (bb.hasArray()) {
+			n = encodeTo(bb.array(), bb.arrayOffset()+bb.position());
+		} else {
+			if ((scratch == null) || (scratch.length < len)) {
+				scratch = new byte[Math.max(len, 32)];
+			}
+			n = encodeTo(scratch, 0);
+			bb.put(scratch, 0, n);
+			return n;
 		}
-		return ret;
+		bb.position(bb.position()+n);
+		return n;
 	}
 
 	/**
@@ -369,6 +546,213 @@ public class CbusEvent {
 		can_id = c & 0x7F;
 	}
 	
+	/**
+	 * Indicates if this is an extended frame with a 29 bit identifier.
+	 * @return true for an extended frame
+	 */
+	public boolean isExtended() {
+		return extended;
+	}
+	
+	/**
+	 * Indicates if this is a remote transmission request.
+	 * @return true for an RTR frame
+	 */
+	public boolean isRtr() {
+		return rtr;
+	}
+	
+	/**
+	 * Get the number of data bytes in the CAN frame, which for a standard frame is the op code 
+	 * plus its parameters.
+	 * @return the CAN data length (0-8)
+	 */
+	public int getCanDlc() {
+		if (extended) {
+			if (extdata == null) return 0;
+			int n = 0;
+			for (int i=1; i<extdata.length(); i++) {
+				if (extdata.charAt(i) == ';') break;
+				n++;
+			}
+			return Math.min(n/2, 8);
+		}
+		if (noOpc) return 0;
+		return 1 + getLen();
+	}
+	
+	/**
+	 * Indicates if this event has an op code. A CAN ack or extended frame does not.
+	 * @return true if there is an op code
+	 */
+	public boolean hasOpc() {
+		return !noOpc && !extended && (opc != null);
+	}
+	
+	/**
+	 * Get the 29 bit address of an extended frame.
+	 * @return the extended address
+	 */
+	public int getExtendedAddress() {
+		return extaddr;
+	}
+	
+	/**
+	 * Record when and where the message was received. Called by the driver as each frame is 
+	 * decoded. Replayed messages are given their original values.
+	 * 
+	 * @param bus the bus number of the driver
+	 * @param sequence the sequence number of the frame on that bus
+	 * @param nanos System.nanoTime() when the frame was received
+	 * @param millis the wall clock time in milliseconds when the frame was received
+	 */
+	public void setReceived(int bus, long sequence, long nanos, long millis) {
+		this.bus = bus;
+		this.sequence = sequence;
+		this.rxNanos = nanos;
+		this.rxMillis = millis;
+	}
+	
+	/**
+	 * Get the System.nanoTime() when the message was received. Only useful for comparing with
+	 * other readings taken in the same JVM, for example to measure latency.
+	 * @return the receive time in nanoseconds
+	 */
+	public long getTimestamp() {
+		return rxNanos;
+	}
+	
+	/**
+	 * Get the wall clock time when the message was received.
+	 * @return the receive time in milliseconds since the epoch, or 0 if not received
+	 */
+	public long getWallTime() {
+		return rxMillis;
+	}
+	
+	/**
+	 * Get the sequence number of the message on the bus it was received from. The numbers 
+	 * increase by one for each frame, including frames which could not be decoded.
+	 * @return the sequence number or -1 if the message was not received
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+	
+	/**
+	 * Get the number of the bus the message was received on.
+	 * @return the bus number
+	 */
+	public int getBus() {
+		return bus;
+	}
+	
+	/**
+	 * Record when the message was queued for transmit. Called by the driver so the time spent
+	 * waiting to be written can be measured.
+	 * @param nanos System.nanoTime() when queued
+	 */
+	public void setQueued(long nanos) {
+		txQueuedNanos = nanos;
+	}
+	
+	/**
+	 * Get the System.nanoTime() when the message was queued for transmit.
+	 * @return the queue time in nanoseconds or 0 if never queued
+	 */
+	public long getQueuedTime() {
+		return txQueuedNanos;
+	}
+	
+	/**
+	 * Pack the header fields into a long as described by CbusFrame.
+	 * @return the packed header
+	 */
+	long packHeader() {
+		long h;
+		if (extended) {
+			h = CbusFrame.EXTENDED | CbusFrame.NO_PRIORITY | ((long)extaddr << CbusFrame.EXTADDR_SHIFT);
+			h |= (long)getCanDlc() << CbusFrame.LEN_SHIFT;
+		} else {
+			h = (long)can_id << CbusFrame.CANID_SHIFT;
+			if ((mjPri == null) || (minPri == null)) {
+				h |= CbusFrame.NO_PRIORITY;
+			} else {
+				h |= ((long)mjPri.getValue() << CbusFrame.MJPRI_SHIFT) | ((long)minPri.getValue() << CbusFrame.MINPRI_SHIFT);
+			}
+			if (noOpc || (opc == null)) {
+				h |= CbusFrame.NO_OPC;
+			} else {
+				if (opc == Opc.UNKNOWN) {
+					h |= CbusFrame.UNKNOWN_OPC;
+				} else {
+					h |= opc.getValue();
+				}
+				h |= (long)getLen() << CbusFrame.LEN_SHIFT;
+			}
+		}
+		if (rtr) h |= CbusFrame.RTR;
+		return h;
+	}
+	
+	/**
+	 * Pack the data bytes into a long as described by CbusFrame.
+	 * @return the packed payload
+	 */
+	long packPayload() {
+		long p = 0;
+		if (extended) {
+			int n = getCanDlc();
+			for (int i=0; i<n; i++) {
+				p |= (long)Util.getNum(extdata.charAt(1+2*i), extdata.charAt(2+2*i)) << (8*i);
+			}
+		} else if (hasOpc()) {
+			for (int i=0; i<getLen(); i++) {
+				p |= (long)(data[i] & 0xFF) << (8*i);
+			}
+		}
+		return p;
+	}
+	
+	/**
+	 * Replace the contents of this event with a header and payload packed as described by CbusFrame.
+	 * @param header the packed header
+	 * @param payload the packed payload
+	 */
+	void unpack(long header, long payload) {
+		extended = CbusFrame.isExtended(header);
+		rtr = CbusFrame.isRtr(header);
+		noOpc = (header & CbusFrame.NO_OPC) != 0;
+		mjPri = CbusFrame.mjPri(header);
+		minPri = CbusFrame.minPri(header);
+		can_id = CbusFrame.canId(header);
+		Arrays.fill(data, 0);
+		int len = CbusFrame.len(header);
+		if (extended) {
+			opc = Opc.UNKNOWN;
+			extaddr = CbusFrame.extAddress(header);
+			StringBuilder sb = new StringBuilder(2+2*len);
+			sb.append(rtr ? 'R' : 'N');
+			for (int i=0; i<len; i++) {
+				sb.append(Util.byteToHex(CbusFrame.data(payload, i)));
+			}
+			sb.append(';');
+			extdata = sb.toString();
+		} else {
+			extaddr = 0;
+			extdata = null;
+			if (noOpc) {
+				opc = Opc.UNKNOWN;
+			} else {
+				opc = CbusFrame.opc(header);
+				if (opc == null) opc = Opc.UNKNOWN;
+				for (int i=0; i<len; i++) {
+					data[i] = CbusFrame.data(payload, i);
+				}
+			}
+		}
+	}
+	
 	/**
 	 * Get the number of parameter bytes for the event's op code.
 	 * @return
@@ -400,49 +784,50 @@ public class CbusEvent {
 		data[idx] = v;
 	}
 	
+	/**
+	 * Get the value of a named parameter of the OPC.
+	 * @param name the parameter name as given by the Opc's ParamNameAndLen
+	 * @return the value or -1 if the OPC has no parameter of that name
+	 */
+	public int getParam(String name) {
+		if (noOpc || (opc == null)) return -1;
+		DecodePlan plan = opc.getPlan();
+		int field = plan.indexOf(name);
+		if (field < 0) return -1;
+		return plan.getValue(data, field);
+	}
+	
 	/**
 	 * Convert the event to a human readable String.
 	 * @return string representation of the event
 	 */
 	public String dump(int base) {
-		String ret;
-		if (rtr) return "RTR";
+		return dump(base, new StringBuilder(64)).toString();
+	}
+	
+	/**
+	 * Append the human readable form of the event to a StringBuilder, which may be reused
+	 * between calls to avoid creating intermediate Strings.
+	 * 
+	 * @param base 16 for hex
+	 * @param sb where to put the text
+	 * @return sb
+	 */
+	public StringBuilder dump(int base, StringBuilder sb) {
+		if (rtr) return sb.append("RTR");
 		if (extended) {
-			ret = "Address="+Util.intToHex(extaddr, 4);
-			ret += "Data="+extdata;
-			return ret;
+			return sb.append("Address=").append(Util.intToHex(extaddr, 4)).append("Data=").append(extdata);
 		}
+		sb.append("MjPri=").append(mjPri).append(" MinPri=").append(minPri).append(" CAN_ID=");
 		if (base == 16) {
-			ret = "MjPri="+mjPri+" MinPri="+minPri + " CAN_ID="+Util.byteToHex(can_id);
+			sb.append(Util.byteToHex(can_id));
 		} else {
-			ret = "MjPri="+mjPri+" MinPri="+minPri + " CAN_ID="+can_id;
-		}
-		if (noOpc) return ret;
-		ret += " OPC="+opc.toString(base);
-
-		int idx = 0;
-		for (ParamNameAndLen p : opc.getParams()) {
-			ret += " "+p.getName();
-			if (p.getType() == ParamType.NUMBER) {
-				int val = 0;
-				for (int i=0; i<p.getLen(); i++) {
-					val = val*256 + data[idx++];
-				}
-				if (base == 16) {
-					ret += "="+Util.intToHex(val, p.getLen());
-				} else {
-					ret += "="+val;
-				}
-			}
-			if (p.getType() == ParamType.STRING) {
-				ret += "=\"";
-				for (int i=0; i<p.getLen(); i++) {
-					ret += (char)data[idx++];
-				}
-				ret += '"';
-			}
+			sb.append(can_id);
 		}
-		return ret;
+		if (noOpc) return sb;
+		sb.append(" OPC=").append(opc.toString(base));
+		opc.getPlan().dump(data, base, sb);
+		return sb;
 	}
 	
 	
@@ -0,0 +1,275 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.sniffer;
+
+import co.uk.ccmr.cbus.sniffer.CbusEvent.MinPri;
+import co.uk.ccmr.cbus.sniffer.CbusEvent.MjPri;
+
+/**
+ * A compact representation of a CBUS message packed into two longs, a header and a payload, so that 
+ * messages can be held in primitive arrays without an object per message. CbusFrame only has static 
+ * methods to pack, unpack and access the fields of the two longs.
+ * <p>
+ * The header holds:
+ * <PRE>
+ *  bits 0-7    OPC value
+ *  bits 8-11   number of data bytes in the payload
+ *  bits 12-18  CAN_ID
+ *  bits 20-21  MinPri
+ *  bits 22-23  MjPri
+ *  bit  24     extended frame
+ *  bit  25     RTR
+ *  bit  26     no OPC (e.g. a CAN ack)
+ *  bit  27     OPC not known
+ *  bit  28     no priority
+ *  bits 32-63  extended frame address
+ * </PRE>
+ * The payload holds data byte n in bits 8n to 8n+7. The NN is data bytes 0 and 1 and the EN is data bytes
+ * 2 and 3.
+ * 
+ * @author ianh
+ *
+ */
+public class CbusFrame {
+	static final int LEN_SHIFT = 8;
+	static final int CANID_SHIFT = 12;
+	static final int MINPRI_SHIFT = 20;
+	static final int MJPRI_SHIFT = 22;
+	static final long EXTENDED = 1L << 24;
+	static final long RTR = 1L << 25;
+	static final long NO_OPC = 1L << 26;
+	static final long UNKNOWN_OPC = 1L << 27;
+	static final long NO_PRIORITY = 1L << 28;
+	static final int EXTADDR_SHIFT = 32;
+	
+	private static final MjPri [] MJPRI = MjPri.values();
+	private static final MinPri [] MINPRI = MinPri.values();
+	
+	private CbusFrame() {
+	}
+	
+	/**
+	 * Pack the header of a CbusEvent.
+	 * @param ce the message
+	 * @return the packed header
+	 */
+	public static long header(CbusEvent ce) {
+		return ce.packHeader();
+	}
+	
+	/**
+	 * Pack the data bytes of a CbusEvent.
+	 * @param ce the message
+	 * @return the packed payload
+	 */
+	public static long payload(CbusEvent ce) {
+		return ce.packPayload();
+	}
+	
+	/**
+	 * Create a CbusEvent from a packed header and payload.
+	 * @param header the packed header
+	 * @param payload the packed payload
+	 * @return a new CbusEvent
+	 */
+	public static CbusEvent toEvent(long header, long payload) {
+		CbusEvent ce = new CbusEvent();
+		ce.unpack(header, payload);
+		return ce;
+	}
+	
+	/**
+	 * Unpack a header and payload into an existing CbusEvent, replacing its contents.
+	 * @param header the packed header
+	 * @param payload the packed payload
+	 * @param ce the CbusEvent to be reused
+	 * @return the CbusEvent
+	 */
+	public static CbusEvent toEvent(long header, long payload, CbusEvent ce) {
+		ce.unpack(header, payload);
+		return ce;
+	}
+	
+	/**
+	 * Store a CbusEvent into an array of frames, each of which uses two longs.
+	 * @param frames the array
+	 * @param slot the index of the frame, so the longs used are 2*slot and 2*slot+1
+	 * @param ce the message
+	 */
+	public static void put(long [] frames, int slot, CbusEvent ce) {
+		frames[2*slot] = ce.packHeader();
+		frames[2*slot+1] = ce.packPayload();
+	}
+	
+	/**
+	 * Get a CbusEvent from an array of frames, each of which uses two longs.
+	 * @param frames the array
+	 * @param slot the index of the frame
+	 * @param ce the CbusEvent to be reused
+	 * @return the CbusEvent
+	 */
+	public static CbusEvent get(long [] frames, int slot, CbusEvent ce) {
+		ce.unpack(frames[2*slot], frames[2*slot+1]);
+		return ce;
+	}
+	
+	/**
+	 * Get the OPC.
+	 * @param header the packed header
+	 * @return the Opc, UNKNOWN if the OPC is not known or null if there is no OPC
+	 */
+	public static Opc opc(long header) {
+		if ((header & (NO_OPC|EXTENDED)) != 0) return null;
+		if ((header & UNKNOWN_OPC) != 0) return Opc.UNKNOWN;
+		return Opc.of(opcValue(header));
+	}
+	
+	/**
+	 * Get the OPC value.
+	 * @param header the packed header
+	 * @return the OPC byte
+	 */
+	public static int opcValue(long header) {
+		return (int)header & 0xFF;
+	}
+	
+	/**
+	 * Indicates if there is a known OPC whose value opcValue() gives. The value of an OPC which is 
+	 * not known is not kept in the header.
+	 * @param header the packed header
+	 * @return true if the frame has a known OPC
+	 */
+	public static boolean hasOpc(long header) {
+		return (header & (NO_OPC|EXTENDED|UNKNOWN_OPC)) == 0;
+	}
+	
+	/**
+	 * Get the number of data bytes.
+	 * @param header the packed header
+	 * @return number of data bytes
+	 */
+	public static int len(long header) {
+		return (int)(header >> LEN_SHIFT) & 0x0F;
+	}
+	
+	/**
+	 * Get the CAN_ID.
+	 * @param header the packed header
+	 * @return the CAN_ID
+	 */
+	public static int canId(long header) {
+		return (int)(header >> CANID_SHIFT) & 0x7F;
+	}
+	
+	/**
+	 * Get the major priority.
+	 * @param header the packed header
+	 * @return the major priority or null if none
+	 */
+	public static MjPri mjPri(long header) {
+		if ((header & NO_PRIORITY) != 0) return null;
+		return MJPRI[(int)(header >> MJPRI_SHIFT) & 0x03];
+	}
+	
+	/**
+	 * Get the minor priority.
+	 * @param header the packed header
+	 * @return the minor priority or null if none
+	 */
+	public static MinPri minPri(long header) {
+		if ((header & NO_PRIORITY) != 0) return null;
+		return MINPRI[(int)(header >> MINPRI_SHIFT) & 0x03];
+	}
+	
+	/**
+	 * Indicates an extended frame.
+	 * @param header the packed header
+	 * @return true if extended
+	 */
+	public static boolean isExtended(long header) {
+		return (header & EXTENDED) != 0;
+	}
+	
+	/**
+	 * Indicates a remote transmission request.
+	 * @param header the packed header
+	 * @return true if RTR
+	 */
+	public static boolean isRtr(long header) {
+		return (header & RTR) != 0;
+	}
+	
+	/**
+	 * Get the extended frame address.
+	 * @param header the packed header
+	 * @return the address
+	 */
+	public static int extAddress(long header) {
+		return (int)(header >>> EXTADDR_SHIFT);
+	}
+	
+	/**
+	 * Get a data byte.
+	 * @param payload the packed payload
+	 * @param idx index of the data byte (0-7)
+	 * @return the data byte
+	 */
+	public static int data(long payload, int idx) {
+		return (int)(payload >>> (8*idx)) & 0xFF;
+	}
+	
+	/**
+	 * Get the NN from where it is normally stored. No checking is done to ensure the OPC supports an NN.
+	 * @param payload the packed payload
+	 * @return the node number
+	 */
+	public static int nn(long payload) {
+		return (data(payload, 0) << 8) | data(payload, 1);
+	}
+	
+	/**
+	 * Get the EN/DN from where it is normally stored. No checking is done to ensure the OPC supports an EN.
+	 * @param payload the packed payload
+	 * @return the event number
+	 */
+	public static int en(long payload) {
+		return (data(payload, 2) << 8) | data(payload, 3);
+	}
+}
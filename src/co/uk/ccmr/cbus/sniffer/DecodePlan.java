@@ -0,0 +1,215 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.sniffer;
+
+/**
+ * The layout of the parameters of an Opc, worked out once from its ParamNameAndLen list. Holds the
+ * offset, width and type of each parameter within the data bytes along with the literal text which
+ * precedes its value in a dump so that messages can be formatted without walking the parameter
+ * list or concatenating Strings.
+ * 
+ * @author ianh
+ *
+ */
+public final class DecodePlan {
+	private static final char [] LOWER_HEX = "0123456789abcdef".toCharArray();
+	
+	private final String [] names;
+	private final String [] labels;
+	private final int [] offsets;
+	private final int [] widths;
+	private final ParamType [] types;
+	private final int length;
+	
+	/**
+	 * Build the plan for a set of parameters.
+	 * 
+	 * @param params the parameters in the order they appear in the message
+	 */
+	DecodePlan(ParamNameAndLen [] params) {
+		int n = params.length;
+		names = new String[n];
+		labels = new String[n];
+		offsets = new int[n];
+		widths = new int[n];
+		types = new ParamType[n];
+		int off = 0;
+		for (int i=0; i<n; i++) {
+			ParamNameAndLen p = params[i];
+			names[i] = p.getName();
+			offsets[i] = off;
+			widths[i] = p.getLen();
+			types[i] = p.getType();
+			if (p.getType() == ParamType.NUMBER) {
+				labels[i] = " "+p.getName()+"=";
+			} else if (p.getType() == ParamType.STRING) {
+				labels[i] = " "+p.getName()+"=\"";
+			} else {
+				labels[i] = " "+p.getName();
+			}
+			off += p.getLen();
+		}
+		length = off;
+	}
+	
+	/**
+	 * Get the number of parameters.
+	 * @return number of parameters
+	 */
+	public int getFieldCount() {
+		return names.length;
+	}
+	
+	/**
+	 * Get the total number of data bytes used by the parameters.
+	 * @return number of bytes
+	 */
+	public int getLength() {
+		return length;
+	}
+	
+	/**
+	 * Get the name of a parameter.
+	 * @param field index of the parameter
+	 * @return the name
+	 */
+	public String getName(int field) {
+		return names[field];
+	}
+	
+	/**
+	 * Get the index within the data bytes of the first byte of a parameter.
+	 * @param field index of the parameter
+	 * @return the offset
+	 */
+	public int getOffset(int field) {
+		return offsets[field];
+	}
+	
+	/**
+	 * Get the number of bytes of a parameter.
+	 * @param field index of the parameter
+	 * @return the width in bytes
+	 */
+	public int getWidth(int field) {
+		return widths[field];
+	}
+	
+	/**
+	 * Get the type of a parameter.
+	 * @param field index of the parameter
+	 * @return the type
+	 */
+	public ParamType getType(int field) {
+		return types[field];
+	}
+	
+	/**
+	 * Find a parameter by name.
+	 * @param name the parameter name
+	 * @return index of the first parameter with that name or -1 if there is none
+	 */
+	public int indexOf(String name) {
+		for (int i=0; i<names.length; i++) {
+			if (names[i].equals(name)) return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Get the value of a parameter as a big endian number.
+	 * @param data the data bytes of the message
+	 * @param field index of the parameter
+	 * @return the value
+	 */
+	public int getValue(int [] data, int field) {
+		int idx = offsets[field];
+		int val = 0;
+		for (int i=0; i<widths[field]; i++) {
+			val = val*256 + data[idx++];
+		}
+		return val;
+	}
+	
+	/**
+	 * Append the parameters of a message to the StringBuilder. NUMBER parameters are formatted
+	 * in lower case hex padded to two digits per byte when base is 16 and in decimal otherwise. 
+	 * STRING parameters are formatted as quoted characters.
+	 * 
+	 * @param data the data bytes of the message
+	 * @param base 16 for hex
+	 * @param sb where to put the text
+	 */
+	public void dump(int [] data, int base, StringBuilder sb) {
+		for (int f=0; f<names.length; f++) {
+			sb.append(labels[f]);
+			if (types[f] == ParamType.NUMBER) {
+				int val = getValue(data, f);
+				if (base == 16) {
+					appendHex(sb, val, widths[f]*2);
+				} else {
+					sb.append(val);
+				}
+			} else if (types[f] == ParamType.STRING) {
+				int idx = offsets[f];
+				for (int i=0; i<widths[f]; i++) {
+					sb.append((char)data[idx++]);
+				}
+				sb.append('"');
+			}
+		}
+	}
+	
+	/**
+	 * Append the value in lower case hex, the same as Util.intToHex.
+	 * @param sb where to put the text
+	 * @param val the value
+	 * @param digits the minimum number of digits
+	 */
+	private static void appendHex(StringBuilder sb, int val, int digits) {
+		int n = Math.max(1, (35 - Integer.numberOfLeadingZeros(val)) / 4);
+		for (int i=n; i<digits; i++) {
+			sb.append('0');
+		}
+		for (int s=(n-1)*4; s>=0; s-=4) {
+			sb.append(LOWER_HEX[(val >>> s) & 0xF]);
+		}
+	}
+}
@@ -480,10 +480,29 @@ public enum Opc {
 	
 	private final int value;
 	private ParamNameAndLen [] params;
+	private final boolean hasNN;
+	private final boolean hasEN;
+	private final DecodePlan plan;
+	private final String hexLabel;
+	private final String decimalLabel;
+	/** Opc indexed by value, where two Opcs share a value the first declared is used */
+	private static final Opc [] BY_VALUE = new Opc[256];
+	static {
+		for (Opc o : values()) {
+			if ((o.value >= 0) && (BY_VALUE[o.value] == null)) {
+				BY_VALUE[o.value] = o;
+			}
+		}
+	}
 	
 	private Opc(int v, ParamNameAndLen [] p) {
 		value = v;
 		params = p;
+		hasNN = (p.length > 0) && "NN".equals(p[0].getName()) && (p[0].getLen() == 2);
+		hasEN = hasNN && (p.length > 1) && "EN".equals(p[1].getName()) && (p[1].getLen() == 2);
+		plan = new DecodePlan(p);
+		hexLabel = label(16);
+		decimalLabel = label(10);
 	}
 	/**
 	 * Get the byte value of this OPC.
@@ -500,15 +519,29 @@ public enum Opc {
 		return (value >> 5) & 7;
 	}
 	/**
-	 * Get a Opc given its value.
+	 * Get a Opc given its value using a lookup table.
 	 * @param v the Opc value
-	 * @return
+	 * @return the Opc, UNKNOWN for -1 or null if no Opc has the value
 	 */
 	public static Opc of(int v) {
-		for (Opc o : Opc.values()) {
-			if (o.getValue() == v) return o;
+		if ((v & ~0xFF) != 0) {
+			return (v == UNKNOWN.value) ? UNKNOWN : null;
 		}
-		return null;
+		return BY_VALUE[v];
+	}
+	/**
+	 * Indicates if the first parameter of this Opc is a NN.
+	 * @return true if the Opc has a NN
+	 */
+	public boolean hasNodeNumber() {
+		return hasNN;
+	}
+	/**
+	 * Indicates if the first two parameters of this Opc are a NN and EN.
+	 * @return true if the Opc has a NN and EN
+	 */
+	public boolean hasEventNumber() {
+		return hasEN;
 	}
 	/**
 	 * Get the set of parameters for this Opc.
@@ -517,11 +550,27 @@ public enum Opc {
 	public ParamNameAndLen[] getParams() {
 		return params;
 	}
+	/**
+	 * Get the precompiled layout of the parameters for this Opc.
+	 * @return the decode plan
+	 */
+	public DecodePlan getPlan() {
+		return plan;
+	}
 	
 	/**
 	 * toString to include the hex value.
 	 */
 	public String toString(int base) {
+		return (base == 16) ? hexLabel : decimalLabel;
+	}
+	
+	/**
+	 * Format the name and value, done once when the Opc is created.
+	 * @param base 16 for hex
+	 * @return the name followed by the value in brackets
+	 */
+	private String label(int base) {
 		String v;
 		if (base == 16) {
 			v = Integer.toHexString(value);
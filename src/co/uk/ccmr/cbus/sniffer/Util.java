@@ -45,6 +45,23 @@ package co.uk.ccmr.cbus.sniffer;
  *
  */
 public class Util {
+	/**
+	 * Lookup table from an ASCII character to its hexadecimal digit value. Characters which are not
+	 * hexadecimal digits map to 0, the same as getNum(char, char).
+	 */
+	private static final byte [] HEX_VALUE = new byte[256];
+	/**
+	 * The ASCII upper case hexadecimal digit for each nibble value.
+	 */
+	public static final byte [] HEX_DIGITS = {
+		'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+	};
+	static {
+		for (int c='0'; c<='9'; c++) HEX_VALUE[c] = (byte)(c - '0');
+		for (int c='A'; c<='F'; c++) HEX_VALUE[c] = (byte)(c - 'A' + 10);
+		for (int c='a'; c<='f'; c++) HEX_VALUE[c] = (byte)(c - 'a' + 10);
+	}
+	
 	/**
 	 * Convert a byte to a hexadecimal String.
 	 * @param b
@@ -96,6 +113,25 @@ public class Util {
 		return n1*0x10 + n2;
 	}
 	
+	/**
+	 * Get the value of a single ASCII hexadecimal digit using a lookup table.
+	 * @param b the ASCII character as a byte
+	 * @return the value 0-15, or 0 if the character is not a hexadecimal digit
+	 */
+	public static int hexValue(byte b) {
+		return HEX_VALUE[b & 0xFF];
+	}
+	
+	/**
+	 * Convert the two ASCII characters at the given position of a byte array into a byte value.
+	 * @param buf the buffer containing the characters
+	 * @param idx index of the most significant nibble
+	 * @return the value represented by the 2 hexadecimal characters
+	 */
+	public static int getNum(byte [] buf, int idx) {
+		return (HEX_VALUE[buf[idx] & 0xFF] << 4) | HEX_VALUE[buf[idx+1] & 0xFF];
+	}
+	
 	/**
 	 * Convert the hexadecimal string to an integer.
 	 * @param s the hexadecimal string
@@ -0,0 +1,210 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.tcpserver;
+
+import co.uk.ccmr.cbus.sniffer.CbusEvent;
+import co.uk.ccmr.cbus.sniffer.Opc;
+import co.uk.ccmr.cbus.sniffer.Util;
+import co.uk.ccmr.cbus.util.IntHashSet;
+
+/**
+ * A subscription filter for a TcpServer client which selects the CBUS messages the client receives.
+ * The filter accepts a message if it matches any of:
+ * <UL>
+ * <LI>a set of OPCs, held as a 256 bit bitmap</LI>
+ * <LI>ranges of NN, held as a 65536 bit bitmap, for OPCs with a NN</LI>
+ * <LI>a set of (NN, EN) pairs, held in a hash set, for OPCs with a NN and EN</LI>
+ * </UL>
+ * A filter with nothing set accepts all messages.
+ * <p>
+ * A filter must not be changed once it is in use by the TcpServer, so changes are made to a copy.
+ * 
+ * @author ianh
+ *
+ */
+public class ClientFilter {
+	/** A filter which accepts everything. */
+	public static final ClientFilter ALL = new ClientFilter();
+	
+	private long [] opcs;
+	private long [] nns;
+	private IntHashSet events;
+	
+	/**
+	 * Create an empty filter which accepts all messages.
+	 */
+	public ClientFilter() {
+		opcs = null;
+		nns = null;
+		events = null;
+	}
+	
+	/**
+	 * Get a copy of this filter which may be changed.
+	 * @return a copy
+	 */
+	public ClientFilter copy() {
+		ClientFilter f = new ClientFilter();
+		if (opcs != null) f.opcs = opcs.clone();
+		if (nns != null) f.nns = nns.clone();
+		if (events != null) f.events = events.copy();
+		return f;
+	}
+	
+	/**
+	 * Indicates if the filter accepts all messages.
+	 * @return true if nothing has been added to the filter
+	 */
+	public boolean acceptsAll() {
+		return (opcs == null) && (nns == null) && (events == null);
+	}
+	
+	/**
+	 * Accept messages with the OPC.
+	 * @param opc the OPC value
+	 */
+	public void addOpc(int opc) {
+		if (opcs == null) opcs = new long[4];
+		opcs[(opc >> 6) & 3] |= 1L << opc;
+	}
+	
+	/**
+	 * Accept messages whose NN is within the range.
+	 * @param from the first NN
+	 * @param to the last NN
+	 */
+	public void addNodeRange(int from, int to) {
+		if (nns == null) nns = new long[1024];
+		for (int nn=Math.max(from, 0); nn<=Math.min(to, 0xFFFF); nn++) {
+			nns[nn >> 6] |= 1L << nn;
+		}
+	}
+	
+	/**
+	 * Accept messages for an event.
+	 * @param nn the NN
+	 * @param en the EN
+	 */
+	public void addEvent(int nn, int en) {
+		if (events == null) events = new IntHashSet();
+		events.add(key(nn, en));
+	}
+	
+	/**
+	 * Combine the NN and EN into a key.
+	 * @param nn the NN
+	 * @param en the EN
+	 * @return the key
+	 */
+	private static int key(int nn, int en) {
+		return ((nn & 0xFFFF) << 16) | (en & 0xFFFF);
+	}
+	
+	/**
+	 * Test whether the filter accepts a message.
+	 * @param ce the message
+	 * @return true if the message is accepted
+	 */
+	public boolean matches(CbusEvent ce) {
+		if (acceptsAll()) return true;
+		Opc opc = ce.getOpc();
+		if ((opc == null) || (opc == Opc.UNKNOWN)) return false;
+		int v = opc.getValue();
+		if ((opcs != null) && ((opcs[v >> 6] & (1L << v)) != 0)) return true;
+		if (! opc.hasNodeNumber()) return false;
+		int nn = ce.getNN();
+		if ((nns != null) && ((nns[nn >> 6] & (1L << nn)) != 0)) return true;
+		return (events != null) && opc.hasEventNumber() && events.contains(key(nn, ce.getDN()));
+	}
+	
+	/**
+	 * Apply a filter command sent by a client, returning the changed filter. The commands are framed in 
+	 * the same way as CBUS messages with the letter F in place of S, followed by a command letter and hex 
+	 * digits:
+	 * <UL>
+	 * <LI>:FC; clears the filter so that all messages are received</LI>
+	 * <LI>:FOooo..; adds one or more 2 digit OPCs</LI>
+	 * <LI>:FNnnnnNNNN; adds a range of NN from nnnn to NNNN</LI>
+	 * <LI>:FEnnnneeee; adds an event NN and EN</LI>
+	 * </UL>
+	 * 
+	 * @param current the filter currently in use
+	 * @param buf buffer holding the command
+	 * @param off index of the ':'
+	 * @param len length of the command including the ':' and ';'
+	 * @return the new filter, or null if the command is invalid
+	 */
+	public static ClientFilter command(ClientFilter current, byte [] buf, int off, int len) {
+		if ((len < 4) || (buf[off+1] != 'F')) return null;
+		int digits = len - 4;
+		int idx = off + 3;
+		ClientFilter f = current.copy();
+		switch (buf[off+2]) {
+		case 'C':
+			return new ClientFilter();
+		case 'O':
+			if ((digits == 0) || (digits % 2 != 0)) return null;
+			for (int i=0; i<digits; i+=2) {
+				f.addOpc(hex(buf, idx+i, 2));
+			}
+			return f;
+		case 'N':
+			if (digits != 8) return null;
+			f.addNodeRange(hex(buf, idx, 4), hex(buf, idx+4, 4));
+			return f;
+		case 'E':
+			if (digits != 8) return null;
+			f.addEvent(hex(buf, idx, 4), hex(buf, idx+4, 4));
+			return f;
+		}
+		return null;
+	}
+	
+	/**
+	 * Get the value of a number of hex digits.
+	 */
+	private static int hex(byte [] buf, int idx, int digits) {
+		int v = 0;
+		for (int i=0; i<digits; i++) {
+			v = (v << 4) | Util.hexValue(buf[idx+i]);
+		}
+		return v;
+	}
+}
@@ -40,32 +40,105 @@
 package co.uk.ccmr.cbus.tcpserver;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.ArrayList;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import co.uk.ccmr.cbus.CbusReceiveListener;
+import co.uk.ccmr.cbus.CbusBatchListener;
 import co.uk.ccmr.cbus.driver.CbusDriver;
+import co.uk.ccmr.cbus.driver.GridConnectFramer;
 import co.uk.ccmr.cbus.sniffer.CbusEvent;
-import co.uk.ccmr.cbus.sniffer.InvalidEventException;
 
 /**
  * Implements a TCP server to accept in-bound TCP connections.
+ * <p>
+ * A single thread uses a Selector to accept connections and to read from all the clients.
+ * Messages are sent to the clients using non-blocking writes. Anything which cannot be written 
+ * immediately is held in a small buffer for each client and written by the selector thread when 
+ * the client is ready, so a slow client does not hold up the driver's reader or the other clients.
+ * If a client's buffer overflows, the SlowClientPolicy determines whether the client is 
+ * disconnected or the message is dropped for that client.
+ * <p>
+ * Each message received from the bus is encoded once and the same bytes are written to every client.
+ * The messages from each read of the bus are encoded together so that a client without a filter
+ * gets them in a single write.
+ * <p>
+ * A client may send filter commands at any time to limit the messages it receives, see ClientFilter.
+ * <p>
+ * Messages from the clients are passed to the CbusDriver by a separate forwarding thread so that
+ * the selector thread is never held up if the driver delays the caller, for example to keep within
+ * the bus capacity or because its transmit queue is full. If the forwarding queue is full the 
+ * message is dropped and counted.
+ * <p>
+ * Invalid frames and filter commands from the clients are counted. The counts are logged as a 
+ * warning at most once every WARNING_INTERVAL seconds.
  * 
  * @author ianh
  *
  */
-public class TcpServer implements Runnable, CbusReceiveListener {
+public class TcpServer implements Runnable, CbusBatchListener {
 	public static final int BUFSIZE = 1000;
+	/** The size of the buffer holding messages waiting to be written to each client. */
+	public static final int CLIENT_BUFSIZE = 8192;
+	/** The most bytes of a batch of messages written to the clients at once. */
+	private static final int BATCH_BUFSIZE = CLIENT_BUFSIZE / 2;
+	/** The number of messages from the clients which may be waiting to be passed to the driver. */
+	public static final int FORWARD_QUEUE_SIZE = 256;
+	/** The shortest time in seconds between warnings about the messages from the clients. */
+	public static final int WARNING_INTERVAL = 10;
+	private static final long WARNING_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(WARNING_INTERVAL);
+	private static final Logger LOGGER = Logger.getLogger(TcpServer.class.getName());
+	
+	/**
+	 * What to do with a client which is not reading its messages quickly enough.
+	 */
+	public enum SlowClientPolicy {
+		/** Close the client's connection. */
+		DISCONNECT,
+		/** Drop messages for the client until there is space in its buffer. */
+		DROP
+	}
 
 	private static TcpServer me = null;
 	
-	private ServerSocket serverSocket = null;
+	private ServerSocketChannel serverChannel = null;
+	private Selector selector;
 	private static Thread listenerThread;
-	private List<Socket> clients;
+	private Thread forwarderThread;
+	/** Messages from the clients waiting to be passed to the driver */
+	private BlockingQueue<CbusEvent> forwardQueue;
+	private volatile long forwardDropped;
+	private volatile long driverRefused;
+	private volatile long invalidFrames;
+	private volatile long invalidFilters;
+	/** When the last warning about the messages from the clients was logged */
+	private long lastWarning;
+	private List<Client> clients;
+	private Queue<Client> pendingWrites;
+	private volatile SlowClientPolicy slowClientPolicy;
+	private volatile ClientFilter defaultFilter;
+	private volatile boolean closed;
+	/** The messages being sent to all the clients are encoded into here */
+	private byte [] encodeBytes;
+	/** Holds the encoded messages being sent to all the clients */
+	private ByteBuffer encodeBuffer;
+	/** The offset in the encodeBuffer of the end of each message of a batch */
+	private int [] frameEnds;
+	/** A read-only view of the encodeBuffer passed to the clients */
+	private ByteBuffer sharedView;
 
 	private static CbusDriver theDriver;
 	
@@ -76,8 +149,26 @@ public class TcpServer implements Runnable, CbusReceiveListener {
 	 * @throws IOException if there is a communications failure
 	 */
 	private TcpServer(int port) throws IOException {
-		serverSocket = new ServerSocket(port);
-		clients = new ArrayList<Socket>();
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		clients = new CopyOnWriteArrayList<Client>();
+		pendingWrites = new ConcurrentLinkedQueue<Client>();
+		slowClientPolicy = SlowClientPolicy.DISCONNECT;
+		defaultFilter = ClientFilter.ALL;
+		closed = false;
+		encodeBytes = new byte[BATCH_BUFSIZE];
+		encodeBuffer = ByteBuffer.allocateDirect(BATCH_BUFSIZE);
+		frameEnds = new int[BATCH_BUFSIZE / 8];
+		sharedView = encodeBuffer.asReadOnlyBuffer();
+		forwardQueue = new ArrayBlockingQueue<CbusEvent>(FORWARD_QUEUE_SIZE);
+		forwardDropped = 0;
+		driverRefused = 0;
+		invalidFrames = 0;
+		invalidFilters = 0;
+		lastWarning = System.nanoTime() - WARNING_INTERVAL_NANOS;
 	}
 	
 	/**
@@ -97,135 +188,481 @@ public class TcpServer implements Runnable, CbusReceiveListener {
 			// start the thread
 			listenerThread = new Thread(me);
 			listenerThread.start();
+			me.forwarderThread = new Thread(me.new Forwarder(), "CBUS TCP forwarder");
+			me.forwarderThread.setDaemon(true);
+			me.forwarderThread.start();
 			theDriver.addListener(me);
 		}
 		return me;
 	}
+	
+	/**
+	 * Set what happens to a client whose buffer of messages waiting to be written overflows.
+	 * The default is to disconnect the client.
+	 * 
+	 * @param p the policy
+	 */
+	public void setSlowClientPolicy(SlowClientPolicy p) {
+		slowClientPolicy = p;
+	}
+	
+	/**
+	 * Set the filter given to clients when they connect. The default accepts all messages.
+	 * 
+	 * @param f the filter, which must not be changed afterwards
+	 */
+	public void setDefaultFilter(ClientFilter f) {
+		defaultFilter = (f == null) ? ClientFilter.ALL : f;
+	}
+	
+	/**
+	 * Get the number of connected clients.
+	 * @return number of clients
+	 */
+	public int getClientCount() {
+		return clients.size();
+	}
+	
+	/**
+	 * Get the number of messages from the clients dropped because the forwarding queue was full.
+	 * @return number of dropped messages
+	 */
+	public long getForwardDroppedCount() {
+		return forwardDropped;
+	}
+	
+	/**
+	 * Get the number of messages from the clients which the driver refused to transmit.
+	 * @return number of refused messages
+	 */
+	public long getDriverRefusedCount() {
+		return driverRefused;
+	}
+	
+	/**
+	 * Get the number of frames from the clients which could not be decoded.
+	 * @return number of invalid frames
+	 */
+	public long getInvalidFrameCount() {
+		return invalidFrames;
+	}
+	
+	/**
+	 * Get the number of invalid filter commands from the clients.
+	 * @return number of invalid filter commands
+	 */
+	public long getInvalidFilterCount() {
+		return invalidFilters;
+	}
+	
+	/**
+	 * Log the counts of problems with the messages from the clients unless they were logged 
+	 * within the last WARNING_INTERVAL. Called by the selector thread.
+	 * 
+	 * @param buf holds the latest problem frame
+	 * @param off offset of the frame
+	 * @param len length of the frame
+	 */
+	private void warn(byte [] buf, int off, int len) {
+		long now = System.nanoTime();
+		if (now - lastWarning < WARNING_INTERVAL_NANOS) return;
+		lastWarning = now;
+		LOGGER.warning("From TCP clients: "+invalidFrames+" invalid frames, "+invalidFilters+" invalid filter commands, "
+				+forwardDropped+" messages dropped as the driver was busy. Latest:"+new String(buf, off, len));
+	}
 
 	/**
-	 * Run this TCP server so that in-bount connects are accpeted.
+	 * Run this TCP server so that in-bound connections are accepted, clients are read and any
+	 * pending writes completed.
 	 */
 	@Override
 	public void run() {
-		System.out.println("accepting on server socket port="+serverSocket.getLocalPort());
-		while (true) {
+		LOGGER.info("Accepting TCP clients on port "+serverChannel.socket().getLocalPort());
+		ByteBuffer readBuffer = ByteBuffer.allocate(BUFSIZE);
+		while (! closed) {
 			try {
-				Socket s = serverSocket.accept();
-				System.out.println("Socket connected from:"+s.getRemoteSocketAddress());
-				clients.add(s);
-				Thread t = new Thread(new ServerSocketReader(s));
-				t.start();
-				// create the reader/writer threads
+				selector.select();
 			} catch (IOException e) {
 				break;
 			}
+			if (closed) break;
+			Client c;
+			while ((c = pendingWrites.poll()) != null) {
+				c.enableWrite();
+			}
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				if (! key.isValid()) continue;
+				if (key.isAcceptable()) {
+					accept();
+					continue;
+				}
+				c = (Client)key.attachment();
+				if (key.isReadable()) {
+					c.read(readBuffer);
+				}
+				if (key.isValid() && key.isWritable()) {
+					c.flush();
+				}
+			}
 		}
-		
 	}
 	
 	/**
-	 * Called by the CbusDriver when a CBUS message is received.
-	 * Performs no action.
+	 * Accept an in-bound connection.
+	 */
+	private void accept() {
+		try {
+			SocketChannel sc = serverChannel.accept();
+			if (sc == null) return;
+			LOGGER.info("TCP client connected from "+sc.socket().getRemoteSocketAddress());
+			sc.configureBlocking(false);
+			sc.socket().setTcpNoDelay(true);
+			Client c = new Client(sc);
+			c.key = sc.register(selector, SelectionKey.OP_READ, c);
+			clients.add(c);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to accept TCP client", e);
+		}
+	}
+	
+	/**
+	 * Called by the CbusDriver when a CBUS message is received. 
+	 * The message is encoded once into a shared buffer which is then written to all the client 
+	 * TCP connections.
 	 * 
 	 * @param ce the CBUS message
 	 */
 	@Override
-	public void receiveMessage(CbusEvent ce) {
-		
+	public synchronized void receiveMessage(CbusEvent ce) {
+		if (clients.isEmpty()) return;
+		if (ce.encodedLength() > encodeBytes.length) return;
+		int n = ce.encodeTo(encodeBytes, 0);
+		encodeBuffer.clear();
+		encodeBuffer.put(encodeBytes, 0, n);
+		fanOut(n, ce);
 	}
 
 	/**
-	 * Called by the CbusDriver when a CBUS message is received. 
+	 * Called by the CbusDriver with the CBUS messages from a read. As many messages as fit are 
+	 * encoded together. Clients without a filter are sent all of them with one write and other 
+	 * clients are sent each run of consecutive messages their filter accepts.
+	 * 
+	 * @param batch the CBUS messages
+	 * @param count the number of messages
+	 */
+	@Override
+	public synchronized void receiveMessages(CbusEvent [] batch, int count) {
+		if (clients.isEmpty()) return;
+		int i = 0;
+		while (i < count) {
+			int first = i;
+			int len = 0;
+			int n = 0;
+			while ((i < count) && (n < frameEnds.length)) {
+				CbusEvent ce = batch[i];
+				int l = ce.encodedLength();
+				if (len + l > encodeBytes.length) break;
+				if (l <= GridConnectFramer.MAX_FRAME_LEN) {
+					len += ce.encodeTo(encodeBytes, len);
+				}
+				// an oversized message is left out by giving it no bytes
+				frameEnds[n++] = len;
+				i++;
+			}
+			encodeBuffer.clear();
+			encodeBuffer.put(encodeBytes, 0, len);
+			fanOut(batch, first, n);
+		}
+	}
+
+	/**
+	 * Called by the CbusDriver when a CBUS message is received which could not be decoded. 
 	 * Passes the message to all the client TCP connections.
 	 * 
 	 * @param input CBUS message
 	 */
 	@Override
-	public void receiveString(String input) {
-		System.out.println("TcpServer - got a message from CAN:"+input);
-		List<Socket> toRemove = new ArrayList<Socket>();
-		for (Socket s : clients) {
-			try {
-				OutputStream os = s.getOutputStream();
-				
-				os.write(input.getBytes());
-			} catch (IOException e) {
-				// remove from clients
-				toRemove.add(s);
+	public synchronized void receiveString(String input) {
+		byte [] b = input.getBytes();
+		if (b.length > encodeBuffer.capacity()) return;
+		encodeBuffer.clear();
+		encodeBuffer.put(b);
+		fanOut(b.length, null);
+	}
+	
+	/**
+	 * Write the message in the encode buffer to all the clients whose filter accepts it using the 
+	 * shared read-only view.
+	 * 
+	 * @param len the length of the message
+	 * @param ce the message, or null if it could not be decoded in which case it is only sent to 
+	 * clients without a filter
+	 */
+	private void fanOut(int len, CbusEvent ce) {
+		sharedView.limit(len);
+		sharedView.position(0);
+		for (Client c : clients) {
+			ClientFilter f = c.filter;
+			if ((ce == null) ? f.acceptsAll() : f.matches(ce)) {
+				c.send(sharedView);
 			}
 		}
-		for (Socket s : toRemove) {
-			clients.remove(s);
+	}
+	
+	/**
+	 * Write a batch of messages in the encode buffer to the clients. Runs of consecutive messages 
+	 * accepted by a client's filter are written together.
+	 * 
+	 * @param batch the messages
+	 * @param first the index in batch of the first message in the encode buffer
+	 * @param n the number of messages in the encode buffer
+	 */
+	private void fanOut(CbusEvent [] batch, int first, int n) {
+		for (Client c : clients) {
+			ClientFilter f = c.filter;
+			if (f.acceptsAll()) {
+				sendRange(c, 0, frameEnds[n-1]);
+				continue;
+			}
+			int start = -1;
+			for (int k=0; k<n; k++) {
+				boolean match = f.matches(batch[first + k]);
+				if (match && (start < 0)) {
+					start = (k == 0) ? 0 : frameEnds[k-1];
+				} else if (!match && (start >= 0)) {
+					sendRange(c, start, frameEnds[k-1]);
+					start = -1;
+				}
+			}
+			if (start >= 0) sendRange(c, start, frameEnds[n-1]);
 		}
 	}
 	
+	/**
+	 * Send part of the encode buffer to a client using the shared read-only view.
+	 * 
+	 * @param c the client
+	 * @param start offset of the first byte
+	 * @param end offset after the last byte
+	 */
+	private void sendRange(Client c, int start, int end) {
+		sharedView.limit(end);
+		sharedView.position(start);
+		c.send(sharedView);
+	}
+	
 	/**
 	 * Close the server socket.
 	 * Closes the TCP connections to all the clients.
 	 */
 	public void close() {
-		if (serverSocket != null)
-			try {
-				serverSocket.close();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		for (Socket c : clients) {
-			try {
-				c.close();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+		closed = true;
+		selector.wakeup();
+		if (forwarderThread != null) {
+			forwarderThread.interrupt();
+		}
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to close TCP server socket", e);
+		}
+		for (Client c : clients) {
+			c.close();
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to close TCP server selector", e);
+		}
+	}
+	
+	/**
+	 * Passes the messages from the clients to the CbusDriver.
+	 * 
+	 * @author ianh
+	 *
+	 */
+	private class Forwarder implements Runnable {
+		@Override
+		public void run() {
+			while (! closed) {
+				try {
+					if (! theDriver.queueForTransmit(forwardQueue.take())) {
+						driverRefused++;
+					}
+				} catch (InterruptedException e) {
+					break;
+				}
 			}
 		}
 	}
 	
 	/**
-	 * Reads a TCP client socket and sends any CBUS messages to the CbusDriver.
+	 * A TCP client connection. Reads CBUS messages from the client and sends them to the CbusDriver, 
+	 * and buffers messages to be written to the client.
 	 * 
 	 * @author ianh
 	 *
 	 */
-	private class ServerSocketReader implements Runnable {
-		private InputStream is;
+	private class Client implements GridConnectFramer.FrameHandler {
+		private final SocketChannel channel;
+		private SelectionKey key;
+		private final GridConnectFramer framer;
+		/** Bytes waiting to be written, in write mode */
+		private final ByteBuffer out;
+		private boolean writePending;
+		private boolean open;
+		private long dropped;
+		/** The filter selecting the messages sent to this client */
+		private volatile ClientFilter filter;
 		
 		/**
-		 * Create a ServerSocketReader.
-		 * @param s the socket to be read
-		 * @throws IOException if there are any communications failures
+		 * Create a Client.
+		 * @param sc the connected socket channel
 		 */
-		public ServerSocketReader(Socket s) throws IOException {
-			is = s.getInputStream();
+		public Client(SocketChannel sc) {
+			channel = sc;
+			framer = new GridConnectFramer(this);
+			out = ByteBuffer.allocate(CLIENT_BUFSIZE);
+			writePending = false;
+			open = true;
+			dropped = 0;
+			filter = defaultFilter;
+		}
+		
+		/**
+		 * Read whatever is available from the client and pass it through the framer.
+		 * Called by the selector thread.
+		 * @param buffer the buffer to read into
+		 */
+		public void read(ByteBuffer buffer) {
+			buffer.clear();
+			int cc;
+			try {
+				cc = channel.read(buffer);
+			} catch (IOException e) {
+				// socket reset probably
+				cc = -1;
+			}
+			if (cc < 0) {
+				close();
+				return;
+			}
+			framer.feed(buffer.array(), 0, cc);
 		}
 
 		/**
-		 * Reads the socket and queues and CBUS messages received on the out-bound CbusDriver.
+		 * Called by the framer for each complete frame received from the client.
 		 */
 		@Override
-		public void run() {
-			byte [] buffer = new byte[BUFSIZE];
+		public void frameReceived(byte[] buf, int off, int len) {
+			if ((len > 2) && (buf[off+1] == 'F')) {
+				ClientFilter f = ClientFilter.command(filter, buf, off, len);
+				if (f == null) {
+					invalidFilters++;
+					warn(buf, off, len);
+				} else {
+					filter = f;
+				}
+				return;
+			}
+			CbusEvent ce = new CbusEvent();
+			if (ce.decode(buf, off, len)) {
+				if (! forwardQueue.offer(ce)) {
+					forwardDropped++;
+					warn(buf, off, len);
+				}
+			} else {
+				invalidFrames++;
+				warn(buf, off, len);
+			}
+		}
+		
+		/**
+		 * Send a message to the client without blocking. If the client is not ready the message 
+		 * is buffered. The position of the buffer is not changed.
+		 * 
+		 * @param frame the encoded message
+		 */
+		public synchronized void send(ByteBuffer frame) {
+			if (! open) return;
+			int pos = frame.position();
 			try {
-				while (true) {
-					// read from socket	
-					int cc = is.read(buffer, 0, BUFSIZE);
-					if (cc <= 0) break;
-					// create a Message
-					String message = new String(buffer, 0, cc);
-
-					CbusEvent ce = null;
-					try {
-						ce = new CbusEvent(message);
-	System.out.println("Got a message from the server socket so queuing for transmit");
-						theDriver.queueForTransmit(ce);
-					} catch (InvalidEventException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
+				if (! writePending) {
+					channel.write(frame);
+					if (! frame.hasRemaining()) return;
+				}
+				if (frame.remaining() > out.remaining()) {
+					if (slowClientPolicy == SlowClientPolicy.DISCONNECT) {
+						LOGGER.warning("Disconnecting slow TCP client "+channel.socket().getRemoteSocketAddress());
+						close();
+					} else {
+						dropped++;
 					}
+					return;
+				}
+				out.put(frame);
+				if (! writePending) {
+					writePending = true;
+					pendingWrites.add(this);
+					selector.wakeup();
 				}
 			} catch (IOException e) {
-				// socket reset probably
+				close();
+			} finally {
+				frame.position(pos);
+			}
+		}
+		
+		/**
+		 * Register interest in the client being ready to write. Called by the selector thread.
+		 */
+		public void enableWrite() {
+			if (key.isValid()) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+		
+		/**
+		 * Write as much of the buffered data as the client will accept. Called by the selector thread.
+		 */
+		public synchronized void flush() {
+			out.flip();
+			try {
+				channel.write(out);
+			} catch (IOException e) {
+				close();
+				return;
+			} finally {
+				out.compact();
+			}
+			if (out.position() == 0) {
+				writePending = false;
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+		
+		/**
+		 * Close the connection to the client.
+		 */
+		public synchronized void close() {
+			if (! open) return;
+			open = false;
+			clients.remove(this);
+			if (key != null) key.cancel();
+			Object address = channel.socket().getRemoteSocketAddress();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// already closed
+			}
+			if (dropped > 0) {
+				LOGGER.warning("Dropped "+dropped+" messages for slow TCP client "+address);
 			}
+			LOGGER.info("TCP client disconnected from "+address);
 		}
 	}
 }
@@ -0,0 +1,164 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.util;
+
+/**
+ * A set of primitive int values using open addressing with linear probing, so that lookups
+ * do not need any boxing or allocation.
+ * 
+ * @author ianh
+ *
+ */
+public class IntHashSet {
+	/** Marks an empty slot. A zero value is recorded separately. */
+	private static final int FREE = 0;
+	
+	private int [] keys;
+	private int mask;
+	private int size;
+	private boolean containsZero;
+	
+	/**
+	 * Create an empty IntHashSet.
+	 */
+	public IntHashSet() {
+		this(16);
+	}
+	
+	/**
+	 * Create an empty IntHashSet.
+	 * @param expected the expected number of values
+	 */
+	public IntHashSet(int expected) {
+		int cap = 8;
+		while (cap < expected * 2) cap <<= 1;
+		keys = new int[cap];
+		mask = cap - 1;
+		size = 0;
+		containsZero = false;
+	}
+	
+	/**
+	 * Spread the bits of the value to get the starting slot.
+	 * @param v the value
+	 * @return the hash
+	 */
+	static int hash(int v) {
+		int h = v * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	/**
+	 * Add a value to the set.
+	 * @param v the value
+	 * @return true if the value was added, false if already present
+	 */
+	public boolean add(int v) {
+		if (v == FREE) {
+			if (containsZero) return false;
+			containsZero = true;
+			size++;
+			return true;
+		}
+		int i = hash(v) & mask;
+		while (keys[i] != FREE) {
+			if (keys[i] == v) return false;
+			i = (i + 1) & mask;
+		}
+		keys[i] = v;
+		size++;
+		if (size * 2 > keys.length) rehash();
+		return true;
+	}
+	
+	/**
+	 * Test whether a value is in the set.
+	 * @param v the value
+	 * @return true if present
+	 */
+	public boolean contains(int v) {
+		if (v == FREE) return containsZero;
+		int i = hash(v) & mask;
+		int k;
+		while ((k = keys[i]) != FREE) {
+			if (k == v) return true;
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+	
+	/**
+	 * Get the number of values in the set.
+	 * @return the size
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Get a copy of this set.
+	 * @return the copy
+	 */
+	public IntHashSet copy() {
+		IntHashSet s = new IntHashSet();
+		s.keys = keys.clone();
+		s.mask = mask;
+		s.size = size;
+		s.containsZero = containsZero;
+		return s;
+	}
+	
+	/**
+	 * Double the table size.
+	 */
+	private void rehash() {
+		int [] old = keys;
+		keys = new int[old.length * 2];
+		mask = keys.length - 1;
+		for (int k : old) {
+			if (k == FREE) continue;
+			int i = hash(k) & mask;
+			while (keys[i] != FREE) {
+				i = (i + 1) & mask;
+			}
+			keys[i] = k;
+		}
+	}
+}
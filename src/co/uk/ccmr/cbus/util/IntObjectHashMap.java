@@ -0,0 +1,234 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.util;
+
+/**
+ * A map from primitive int keys to objects using open addressing with linear probing, so that
+ * lookups do not need any boxing or allocation.
+ * 
+ * @author ianh
+ *
+ * @param <V> the type of the values
+ */
+public class IntObjectHashMap<V> {
+	/** Marks an empty slot. The value for a zero key is recorded separately. */
+	private static final int FREE = 0;
+	
+	private int [] keys;
+	private Object [] values;
+	private int mask;
+	private int size;
+	private boolean containsZero;
+	private V zeroValue;
+	
+	/**
+	 * Create an empty IntObjectHashMap.
+	 */
+	public IntObjectHashMap() {
+		this(16);
+	}
+	
+	/**
+	 * Create an empty IntObjectHashMap.
+	 * @param expected the expected number of entries
+	 */
+	public IntObjectHashMap(int expected) {
+		int cap = 8;
+		while (cap < expected * 2) cap <<= 1;
+		keys = new int[cap];
+		values = new Object[cap];
+		mask = cap - 1;
+		size = 0;
+		containsZero = false;
+		zeroValue = null;
+	}
+	
+	/**
+	 * Get the value for a key.
+	 * @param k the key
+	 * @return the value or null if the key is not present
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int k) {
+		if (k == FREE) return zeroValue;
+		int i = IntHashSet.hash(k) & mask;
+		int key;
+		while ((key = keys[i]) != FREE) {
+			if (key == k) return (V)values[i];
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+	
+	/**
+	 * Test whether a key is in the map.
+	 * @param k the key
+	 * @return true if present
+	 */
+	public boolean containsKey(int k) {
+		if (k == FREE) return containsZero;
+		int i = IntHashSet.hash(k) & mask;
+		int key;
+		while ((key = keys[i]) != FREE) {
+			if (key == k) return true;
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+	
+	/**
+	 * Set the value for a key.
+	 * @param k the key
+	 * @param v the value
+	 * @return the previous value or null if the key was not present
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int k, V v) {
+		if (k == FREE) {
+			V old = zeroValue;
+			if (!containsZero) {
+				containsZero = true;
+				size++;
+			}
+			zeroValue = v;
+			return old;
+		}
+		int i = IntHashSet.hash(k) & mask;
+		while (keys[i] != FREE) {
+			if (keys[i] == k) {
+				V old = (V)values[i];
+				values[i] = v;
+				return old;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = k;
+		values[i] = v;
+		size++;
+		if (size * 2 > keys.length) rehash();
+		return null;
+	}
+	
+	/**
+	 * Remove a key from the map. The entries following it are moved back so that no deleted
+	 * markers are needed.
+	 * @param k the key
+	 * @return the value or null if the key was not present
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int k) {
+		if (k == FREE) {
+			V old = zeroValue;
+			if (containsZero) {
+				containsZero = false;
+				zeroValue = null;
+				size--;
+			}
+			return old;
+		}
+		int i = IntHashSet.hash(k) & mask;
+		while (keys[i] != k) {
+			if (keys[i] == FREE) return null;
+			i = (i + 1) & mask;
+		}
+		V old = (V)values[i];
+		size--;
+		// shift back any following entries which belong at or before the gap
+		int gap = i;
+		int j = (i + 1) & mask;
+		int key;
+		while ((key = keys[j]) != FREE) {
+			int home = IntHashSet.hash(key) & mask;
+			if (((j - home) & mask) >= ((j - gap) & mask)) {
+				keys[gap] = key;
+				values[gap] = values[j];
+				gap = j;
+			}
+			j = (j + 1) & mask;
+		}
+		keys[gap] = FREE;
+		values[gap] = null;
+		return old;
+	}
+	
+	/**
+	 * Get the number of entries in the map.
+	 * @return the size
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Get a copy of this map. The values themselves are not copied.
+	 * @return the copy
+	 */
+	public IntObjectHashMap<V> copy() {
+		IntObjectHashMap<V> m = new IntObjectHashMap<V>();
+		m.keys = keys.clone();
+		m.values = values.clone();
+		m.mask = mask;
+		m.size = size;
+		m.containsZero = containsZero;
+		m.zeroValue = zeroValue;
+		return m;
+	}
+	
+	/**
+	 * Double the table size.
+	 */
+	private void rehash() {
+		int [] oldKeys = keys;
+		Object [] oldValues = values;
+		keys = new int[oldKeys.length * 2];
+		values = new Object[keys.length];
+		mask = keys.length - 1;
+		for (int n=0; n<oldKeys.length; n++) {
+			int k = oldKeys[n];
+			if (k == FREE) continue;
+			int i = IntHashSet.hash(k) & mask;
+			while (keys[i] != FREE) {
+				i = (i + 1) & mask;
+			}
+			keys[i] = k;
+			values[i] = oldValues[n];
+		}
+	}
+}
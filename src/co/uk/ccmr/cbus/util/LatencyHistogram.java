@@ -0,0 +1,172 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds with log-linear buckets, in the style of an HDR histogram. 
+ * Each power of 2 is split into 8 linear sub-buckets so values are recorded to within 12.5% 
+ * whatever their size, from nanoseconds up to over an hour, using a fixed array of counters.
+ * Recording is a few atomic additions with no locking or allocation.
+ * 
+ * @author ianh
+ *
+ */
+public class LatencyHistogram {
+	/** log2 of the number of sub-buckets in each power of 2 */
+	private static final int SUB_BITS = 3;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	/** Values are clamped to below 2^MAX_BITS nanoseconds */
+	private static final int MAX_BITS = 42;
+	private static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_COUNT;
+	
+	private final AtomicLongArray counts;
+	private final LongAdder count;
+	private final LongAdder sum;
+	private final AtomicLong max;
+	
+	/**
+	 * Create an empty LatencyHistogram.
+	 */
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(BUCKETS);
+		count = new LongAdder();
+		sum = new LongAdder();
+		max = new AtomicLong();
+	}
+	
+	/**
+	 * Get the bucket holding a value.
+	 * @param v the value, not negative
+	 * @return the bucket index
+	 */
+	static int bucket(long v) {
+		if (v < SUB_COUNT) return (int)v;
+		int e = 63 - Long.numberOfLeadingZeros(v);
+		if (e >= MAX_BITS) return BUCKETS - 1;
+		return ((e - SUB_BITS + 1) << SUB_BITS) | (int)((v >>> (e - SUB_BITS)) & (SUB_COUNT - 1));
+	}
+	
+	/**
+	 * Get the largest value held by a bucket.
+	 * @param b the bucket index
+	 * @return the upper bound of the bucket
+	 */
+	static long upperBound(int b) {
+		if (b < SUB_COUNT) return b;
+		int e = (b >>> SUB_BITS) + SUB_BITS - 1;
+		long base = (long)(SUB_COUNT | (b & (SUB_COUNT - 1))) << (e - SUB_BITS);
+		return base + (1L << (e - SUB_BITS)) - 1;
+	}
+	
+	/**
+	 * Record a duration.
+	 * @param nanos the duration in nanoseconds, negative values are recorded as 0
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+		counts.incrementAndGet(bucket(nanos));
+		count.increment();
+		sum.add(nanos);
+		long m;
+		while (nanos > (m = max.get())) {
+			if (max.compareAndSet(m, nanos)) break;
+		}
+	}
+	
+	/**
+	 * Get the number of durations recorded.
+	 * @return the count
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+	
+	/**
+	 * Get the mean duration.
+	 * @return the mean in nanoseconds or 0 if nothing has been recorded
+	 */
+	public double getMean() {
+		long n = count.sum();
+		return (n == 0) ? 0 : (double)sum.sum() / n;
+	}
+	
+	/**
+	 * Get the largest duration recorded.
+	 * @return the maximum in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+	
+	/**
+	 * Get the duration below which the given percentage of the recorded durations fall.
+	 * @param percentile between 0 and 100
+	 * @return the upper bound of the bucket holding the percentile, in nanoseconds
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = 0;
+		long [] c = new long[BUCKETS];
+		for (int i=0; i<BUCKETS; i++) {
+			c[i] = counts.get(i);
+			total += c[i];
+		}
+		if (total == 0) return 0;
+		long target = Math.max(1, (long)Math.ceil(total * percentile / 100.0));
+		long seen = 0;
+		for (int i=0; i<BUCKETS; i++) {
+			seen += c[i];
+			if (seen >= target) return Math.min(upperBound(i), getMax());
+		}
+		return getMax();
+	}
+	
+	/**
+	 * Summarise the histogram.
+	 */
+	@Override
+	public String toString() {
+		return "count="+getCount()+" mean="+(long)getMean()+"ns p50="+getValueAtPercentile(50)+
+				"ns p99="+getValueAtPercentile(99)+"ns max="+getMax()+"ns";
+	}
+}
@@ -87,6 +87,69 @@ public interface Options {
 	 * Indicates if we should try to reconnect comms. Useful for testing without hardware.
 	 */
 	public boolean getNoReconnect();
+	
+	/**
+	 * Get the maximum number of messages a driver's writer may send to the port in one write.
+	 *
+	 * @return the maximum messages per write
+	 */
+	public int getWriterBatchFrames();
+	/**
+	 * Get the time in milliseconds a driver's writer may wait for further messages before writing a batch.
+	 *
+	 * @return the maximum batching delay
+	 */
+	public int getWriterBatchDelay();
+	/**
+	 * Get the maximum number of messages which may wait in a driver's transmit queue.
+	 *
+	 * @return the capacity, or 0 for an unbounded queue
+	 */
+	public int getWriterQueueCapacity();
+	/**
+	 * Get what a driver does when a message is queued for transmission whilst the transmit queue is full.
+	 *
+	 * @return the overflow policy
+	 */
+	public OverflowPolicy getWriterQueuePolicy();
+	/**
+	 * Get the percentage of the CAN bus capacity which a driver may use for transmission.
+	 *
+	 * @return the percentage of bus capacity, or 0 for no limit
+	 */
+	public int getBusUtilisation();
+	/**
+	 * Get the number of received messages a driver holds for listeners which have not yet been called.
+	 *
+	 * @return the receive ring capacity
+	 */
+	public int getReaderRingSize();
+	/**
+	 * Get what happens to a receive listener which falls a whole receive ring behind.
+	 *
+	 * @return the lag policy
+	 */
+	public LagPolicy getReaderLagPolicy();
+	/**
+	 * Get the number of frames held for tracing to the Driver logger. 0 turns tracing off.
+	 *
+	 * @return the frame trace capacity
+	 */
+	public int getFrameTraceSize();
+	/**
+	 * Get how fast a replay driver plays back a capture compared to the original traffic. 
+	 * 0 plays it as fast as possible.
+	 *
+	 * @return the replay speed
+	 */
+	public double getReplaySpeed();
+	/**
+	 * Get whether a replay driver also plays back the transmitted messages of a capture
+	 * to its transmit listeners.
+	 *
+	 * @return true to replay transmitted messages
+	 */
+	public boolean getReplayTransmit();
 
 	/**
 	 * Return some help.
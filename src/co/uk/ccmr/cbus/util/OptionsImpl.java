@@ -226,5 +226,135 @@ public class OptionsImpl implements Options {
 	public boolean getNoReconnect() {
 		return noReconnect;
 	}
+	
+	/**
+	 * Get the maximum number of messages written to the port in one write. Defaults to 32.
+	 * 
+	 * @return the maximum messages per write
+	 */
+	@Override
+	public int getWriterBatchFrames() {
+		return getIntProperty("writerBatchFrames", 32);
+	}
+	
+	/**
+	 * Get the time in milliseconds to wait for further messages before writing. Defaults to 0 so
+	 * that only the messages already queued are written together.
+	 * 
+	 * @return the maximum batching delay
+	 */
+	@Override
+	public int getWriterBatchDelay() {
+		return getIntProperty("writerBatchDelay", 0);
+	}
+	
+	/**
+	 * Get the capacity of the transmit queue. Defaults to 0 meaning unbounded.
+	 * 
+	 * @return the transmit queue capacity
+	 */
+	@Override
+	public int getWriterQueueCapacity() {
+		return getIntProperty("writerQueueCapacity", 0);
+	}
+	
+	/**
+	 * Get the transmit queue overflow policy. Defaults to BLOCK.
+	 * 
+	 * @return the overflow policy
+	 */
+	@Override
+	public OverflowPolicy getWriterQueuePolicy() {
+		return OverflowPolicy.of(props.getProperty("writerQueuePolicy"), OverflowPolicy.BLOCK);
+	}
+	
+	/**
+	 * Get the percentage of the CAN bus capacity which may be used for transmission. Defaults to 80
+	 * leaving capacity for other nodes.
+	 * 
+	 * @return the percentage of bus capacity
+	 */
+	@Override
+	public int getBusUtilisation() {
+		return getIntProperty("busUtilisation", 80);
+	}
+	
+	/**
+	 * Get the number of received messages held for listeners. Defaults to 1024.
+	 * 
+	 * @return the receive ring capacity
+	 */
+	@Override
+	public int getReaderRingSize() {
+		return getIntProperty("readerRingSize", 1024);
+	}
+	
+	/**
+	 * Get what happens to a receive listener which falls behind. Defaults to SKIP so that reading
+	 * from the port never waits for a listener.
+	 * 
+	 * @return the lag policy
+	 */
+	@Override
+	public LagPolicy getReaderLagPolicy() {
+		return LagPolicy.of(props.getProperty("readerLagPolicy"), LagPolicy.SKIP);
+	}
+	
+	/**
+	 * Get the number of frames held for tracing to the Driver logger. Defaults to 4096, 
+	 * 0 turns tracing off.
+	 * 
+	 * @return the frame trace capacity
+	 */
+	@Override
+	public int getFrameTraceSize() {
+		return getIntProperty("frameTraceSize", 4096);
+	}
+	
+	/**
+	 * Get how fast a replay driver plays back a capture. Defaults to 1, real time. 
+	 * 0 plays it as fast as possible.
+	 * 
+	 * @return the replay speed
+	 */
+	@Override
+	public double getReplaySpeed() {
+		String v = props.getProperty("replaySpeed");
+		if (v == null) return 1.0;
+		try {
+			return Math.max(0.0, Double.parseDouble(v.trim()));
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid replaySpeed property "+v);
+			return 1.0;
+		}
+	}
+	
+	/**
+	 * Get whether a replay driver plays back transmitted messages. Defaults to false.
+	 * 
+	 * @return true to replay transmitted messages
+	 */
+	@Override
+	public boolean getReplayTransmit() {
+		return Boolean.parseBoolean(props.getProperty("replayTransmit", "false").trim());
+	}
+	
+	/**
+	 * Get an integer property.
+	 * 
+	 * @param name the property name
+	 * @param def the value to use if the property is missing or invalid
+	 * @return the property value
+	 */
+	private int getIntProperty(String name, int def) {
+		String v = props.getProperty(name);
+		if (v == null) return def;
+		try {
+			return Integer.parseInt(v.trim());
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid "+name+" property "+v);
+			return def;
+		}
+	}
 
 }
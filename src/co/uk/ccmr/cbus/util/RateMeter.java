@@ -0,0 +1,119 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts events and gives the rate per second averaged over the last few whole seconds.
+ * Counts are kept in a small ring of one second buckets so recording is a couple of atomic 
+ * additions with no locking. The rate is approximate as a count made just as a bucket is 
+ * reused may be lost.
+ * 
+ * @author ianh
+ *
+ */
+public class RateMeter {
+	/** Number of one second buckets, a power of 2 */
+	private static final int SLOTS = 8;
+	/** Number of whole seconds averaged over, leaving the current and oldest buckets alone */
+	private static final int WINDOW = SLOTS - 2;
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	
+	private final LongAdder total;
+	private final AtomicLongArray counts;
+	private final AtomicLongArray seconds;
+	private final long startSecond;
+	
+	/**
+	 * Create a RateMeter.
+	 */
+	public RateMeter() {
+		total = new LongAdder();
+		counts = new AtomicLongArray(SLOTS);
+		seconds = new AtomicLongArray(SLOTS);
+		startSecond = System.nanoTime() / NANOS_PER_SECOND;
+		for (int i=0; i<SLOTS; i++) {
+			seconds.set(i, -1);
+		}
+	}
+	
+	/**
+	 * Record a number of events.
+	 * @param n the number of events
+	 * @param nanos System.nanoTime() when they happened
+	 */
+	public void record(long n, long nanos) {
+		total.add(n);
+		long sec = nanos / NANOS_PER_SECOND;
+		int i = (int)(sec & (SLOTS-1));
+		long s = seconds.get(i);
+		if ((s != sec) && seconds.compareAndSet(i, s, sec)) {
+			counts.set(i, 0);
+		}
+		counts.addAndGet(i, n);
+	}
+	
+	/**
+	 * Get the total number of events recorded.
+	 * @return the total
+	 */
+	public long getTotal() {
+		return total.sum();
+	}
+	
+	/**
+	 * Get the average number of events per second over the last few whole seconds.
+	 * @return the rate per second
+	 */
+	public double getRate() {
+		long now = System.nanoTime() / NANOS_PER_SECOND;
+		long sum = 0;
+		for (int k=1; k<=WINDOW; k++) {
+			int i = (int)((now - k) & (SLOTS-1));
+			if (seconds.get(i) == now - k) {
+				sum += counts.get(i);
+			}
+		}
+		long secs = Math.max(1, Math.min(WINDOW, now - startSecond));
+		return (double)sum / secs;
+	}
+}
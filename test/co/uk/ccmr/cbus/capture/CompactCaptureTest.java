@@ -0,0 +1,221 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.capture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import co.uk.ccmr.cbus.sniffer.CbusEvent;
+
+/**
+ * Tests of CompactCaptureWriter and CompactCaptureReader.
+ * 
+ * @author ianh
+ *
+ */
+public class CompactCaptureTest {
+	private static final long START = 1500000000000000000L;
+	
+	/**
+	 * Make a record. The CAN ID and opcode are chosen so that there are 256 different headers.
+	 */
+	private static CaptureRecord record(int i, long time, int bus) throws Exception {
+		int canId = i % 128;
+		int opc = ((i / 128) % 2 == 0) ? 0x90 : 0x91;
+		String frame = String.format(":S%02X%02XN%02X%04X%04X;", 0xB0 | (canId >> 3), (canId & 7) << 5, opc, i & 0xFFFF, (i*7) & 0xFFFF);
+		int direction = (i % 3 == 0) ? CaptureRecord.TX : CaptureRecord.RX;
+		return new CaptureRecord().set(time, direction, bus, new CbusEvent(frame));
+	}
+	
+	private static byte [] write(List<CaptureRecord> records, boolean compress, boolean close) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		CompactCaptureWriter w = new CompactCaptureWriter(bos, compress);
+		for (CaptureRecord r : records) {
+			w.write(r);
+		}
+		if (close) {
+			w.close();
+		} else {
+			w.flush();
+		}
+		return bos.toByteArray();
+	}
+	
+	private static List<CaptureRecord> read(byte [] b) throws IOException {
+		List<CaptureRecord> records = new ArrayList<CaptureRecord>();
+		CompactCaptureReader reader = new CompactCaptureReader(new ByteArrayInputStream(b));
+		CaptureRecord r = new CaptureRecord();
+		while (reader.next(r)) {
+			CaptureRecord copy = new CaptureRecord();
+			if (r.isRaw()) {
+				copy.setRaw(r.getTime(), r.getDirection(), r.getBus(), r.getRawLength(), r.getHeader(), r.getPayload());
+			} else {
+				copy.set(r.getTime(), r.getDirection(), r.getBus(), r.getHeader(), r.getPayload());
+			}
+			records.add(copy);
+		}
+		reader.close();
+		return records;
+	}
+	
+	private static void same(List<CaptureRecord> expected, List<CaptureRecord> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i=0; i<expected.size(); i++) {
+			CaptureRecord e = expected.get(i);
+			CaptureRecord a = actual.get(i);
+			assertEquals("time of "+i, e.getTime(), a.getTime());
+			assertEquals("direction of "+i, e.getDirection(), a.getDirection());
+			assertEquals("bus of "+i, e.getBus(), a.getBus());
+			assertEquals("raw length of "+i, e.getRawLength(), a.getRawLength());
+			assertEquals("header of "+i, e.getHeader(), a.getHeader());
+			assertEquals("payload of "+i, e.getPayload(), a.getPayload());
+		}
+	}
+	
+	/**
+	 * Records spanning several blocks with bus changes, times which go backwards and raw frames
+	 * read back the same, with and without compression.
+	 */
+	@Test
+	public void roundTrip() throws Exception {
+		List<CaptureRecord> records = new ArrayList<CaptureRecord>();
+		long time = START;
+		for (int i=0; i<10000; i++) {
+			time += ((i % 10) == 9) ? -2500 : 1000 + i;
+			int bus = (i / 50) % 3;
+			if (i % 1000 == 500) {
+				byte [] raw = ":SB020N5F01020304050607;".getBytes();
+				records.add(new CaptureRecord().setRaw(time, CaptureRecord.RX, bus, raw, 0, raw.length));
+			} else {
+				records.add(record(i % 40, time, bus));
+			}
+		}
+		same(records, read(write(records, false, true)));
+		same(records, read(write(records, true, true)));
+	}
+	
+	/**
+	 * More different headers than the dictionary holds, so entries are replaced.
+	 */
+	@Test
+	public void dictionaryWraps() throws Exception {
+		List<CaptureRecord> records = new ArrayList<CaptureRecord>();
+		for (int i=0; i<3000; i++) {
+			// cycle through 256 headers, then repeat a few recent ones
+			int h = (i < 1000) ? i % 256 : (i % 5) + 200;
+			records.add(record(h, START + i*1000L, 0));
+		}
+		same(records, read(write(records, false, true)));
+		same(records, read(write(records, true, true)));
+	}
+	
+	/**
+	 * A file cut off anywhere ends after its last whole block.
+	 */
+	@Test
+	public void truncatedFile() throws Exception {
+		List<CaptureRecord> records = new ArrayList<CaptureRecord>();
+		for (int i=0; i<CompactCaptureWriter.BLOCK_RECORDS + 100; i++) {
+			records.add(record(i, START + i*1000L, 0));
+		}
+		for (boolean compress : new boolean[] {false, true}) {
+			byte [] b = write(records, compress, false);
+			same(records, read(b));
+			int firstBlockEnd = -1;
+			for (int cut=16; cut<b.length; cut+=7) {
+				List<CaptureRecord> got = read(Arrays.copyOf(b, cut));
+				if (got.size() == CompactCaptureWriter.BLOCK_RECORDS) {
+					if (firstBlockEnd < 0) firstBlockEnd = cut;
+					same(records.subList(0, got.size()), got);
+				} else {
+					assertEquals("records read from "+cut+" bytes", 0, got.size());
+					assertTrue(firstBlockEnd < 0);
+				}
+			}
+			assertTrue(firstBlockEnd > 0);
+		}
+	}
+	
+	/**
+	 * A block whose record count or lengths are impossible is rejected.
+	 */
+	@Test
+	public void impossibleLengths() throws Exception {
+		List<CaptureRecord> records = new ArrayList<CaptureRecord>();
+		for (int i=0; i<10; i++) {
+			records.add(record(i, START + i*1000L, 0));
+		}
+		byte [] b = write(records, true, true);
+		// the first block starts after the 16 byte file header with its count, length and stored length
+		int [] offsets = {16, 20, 24};
+		int [] values = {-1, Integer.MAX_VALUE, -5};
+		for (int k=0; k<offsets.length; k++) {
+			byte [] bad = Arrays.copyOf(b, b.length);
+			ByteBuffer.wrap(bad).putInt(offsets[k], values[k]);
+			try {
+				read(bad);
+				fail("accepted "+values[k]+" at "+offsets[k]);
+			} catch (IOException e) {
+				assertFalse(e instanceof EOFException);
+			}
+		}
+		byte [] big = Arrays.copyOf(b, b.length);
+		ByteBuffer.wrap(big).putInt(16, CompactCaptureWriter.BLOCK_RECORDS + 1);
+		try {
+			read(big);
+			fail("accepted too many records");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
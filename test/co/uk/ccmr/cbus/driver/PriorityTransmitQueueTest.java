@@ -0,0 +1,173 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.driver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import co.uk.ccmr.cbus.sniffer.CbusEvent;
+import co.uk.ccmr.cbus.sniffer.CbusEvent.MinPri;
+import co.uk.ccmr.cbus.sniffer.CbusEvent.MjPri;
+import co.uk.ccmr.cbus.sniffer.Opc;
+import co.uk.ccmr.cbus.util.OverflowPolicy;
+
+/**
+ * Tests of the overflow policies of PriorityTransmitQueue.
+ * 
+ * @author ianh
+ *
+ */
+public class PriorityTransmitQueueTest {
+	
+	private static CbusEvent event(Opc opc, int... data) {
+		CbusEvent ce = new CbusEvent();
+		ce.setMjPri(MjPri.LOW);
+		ce.setMinPri(MinPri.LOW);
+		ce.setOpc(opc);
+		for (int i=0; i<data.length; i++) {
+			ce.setData(i, data[i]);
+		}
+		return ce;
+	}
+	
+	/**
+	 * ACON, ACOF, ACON for the same event must leave the accessory ON, sent once.
+	 */
+	@Test
+	public void onOffOnSendsLatestState() {
+		PriorityTransmitQueue q = new PriorityTransmitQueue(10, OverflowPolicy.CONFLATE);
+		CbusEvent on1 = event(Opc.ACON, 1, 1, 0, 4);
+		CbusEvent off = event(Opc.ACOF, 1, 1, 0, 4);
+		CbusEvent on2 = event(Opc.ACON, 1, 1, 0, 4);
+		assertTrue(q.offer(on1));
+		assertTrue(q.offer(off));
+		assertTrue(q.offer(on2));
+		assertEquals(1, q.size());
+		assertSame(on2, q.poll());
+		assertNull(q.poll());
+	}
+	
+	/**
+	 * ACON then ACOF for the same event must leave the accessory OFF.
+	 */
+	@Test
+	public void onOffSendsOff() {
+		PriorityTransmitQueue q = new PriorityTransmitQueue(10, OverflowPolicy.CONFLATE);
+		CbusEvent on = event(Opc.ACON, 1, 1, 0, 4);
+		CbusEvent off = event(Opc.ACOF, 1, 1, 0, 4);
+		q.offer(on);
+		q.offer(off);
+		assertSame(off, q.poll());
+		assertNull(q.poll());
+	}
+	
+	/**
+	 * Different events are not conflated and keep their order.
+	 */
+	@Test
+	public void differentEventsKeepOrder() {
+		PriorityTransmitQueue q = new PriorityTransmitQueue(10, OverflowPolicy.CONFLATE);
+		CbusEvent a = event(Opc.ACON, 1, 1, 0, 4);
+		CbusEvent b = event(Opc.ACOF, 1, 1, 0, 5);
+		q.offer(a);
+		q.offer(b);
+		assertSame(a, q.poll());
+		assertSame(b, q.poll());
+	}
+	
+	/**
+	 * The latest speed for a session wins, whatever the speed value.
+	 */
+	@Test
+	public void latestSpeedWins() {
+		PriorityTransmitQueue q = new PriorityTransmitQueue(10, OverflowPolicy.CONFLATE);
+		q.offer(event(Opc.DSPD, 3, 10));
+		CbusEvent last = event(Opc.DSPD, 3, 20);
+		q.offer(last);
+		CbusEvent other = event(Opc.DSPD, 4, 20);
+		q.offer(other);
+		assertSame(last, q.poll());
+		assertSame(other, q.poll());
+	}
+	
+	/**
+	 * Under DROP_OLDEST a message less important than everything waiting is refused, not accepted.
+	 */
+	@Test
+	public void dropOldestRefusesLeastImportant() {
+		PriorityTransmitQueue q = new PriorityTransmitQueue(1, OverflowPolicy.DROP_OLDEST);
+		CbusEvent high = event(Opc.ACON, 1, 1, 0, 4);
+		high.setMjPri(MjPri.HIGH);
+		assertTrue(q.offer(high));
+		assertFalse(q.offer(event(Opc.ACON, 1, 1, 0, 5)));
+		assertEquals(1, q.getRejected());
+		assertSame(high, q.poll());
+	}
+	
+	/**
+	 * Under REJECT submit() tells the caller a message was refused.
+	 */
+	@Test
+	public void rejectSubmitReturnsFalse() throws InterruptedException {
+		PriorityTransmitQueue q = new PriorityTransmitQueue(1, OverflowPolicy.REJECT);
+		assertTrue(q.submit(event(Opc.ACON, 1, 1, 0, 4)));
+		assertFalse(q.submit(event(Opc.ACON, 1, 1, 0, 5)));
+		assertEquals(1, q.getRejected());
+		assertEquals(1, q.size());
+	}
+	
+	/**
+	 * The latest value for an NV wins.
+	 */
+	@Test
+	public void latestNvWins() {
+		PriorityTransmitQueue q = new PriorityTransmitQueue(10, OverflowPolicy.CONFLATE);
+		q.offer(event(Opc.NVSET, 0, 200, 1, 5));
+		CbusEvent last = event(Opc.NVSET, 0, 200, 1, 6);
+		q.offer(last);
+		assertEquals(1, q.size());
+		assertSame(last, q.poll());
+	}
+}
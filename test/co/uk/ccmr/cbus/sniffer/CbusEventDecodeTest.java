@@ -0,0 +1,155 @@
+/*
+ * (c) Ian Hogg 2017
+ */
+/* This work is licensed under the:
+      Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International License.
+   To view a copy of this license, visit:
+      http://creativecommons.org/licenses/by-nc-sa/4.0/
+   or send a letter to Creative Commons, PO Box 1866, Mountain View, CA 94042, USA.
+
+   License summary:
+    You are free to:
+      Share, copy and redistribute the material in any medium or format
+      Adapt, remix, transform, and build upon the material
+
+    The licensor cannot revoke these freedoms as long as you follow the license terms.
+
+    Attribution : You must give appropriate credit, provide a link to the license,
+                   and indicate if changes were made. You may do so in any reasonable manner,
+                   but not in any way that suggests the licensor endorses you or your use.
+
+    NonCommercial : You may not use the material for commercial purposes. **(see note below)
+
+    ShareAlike : If you remix, transform, or build upon the material, you must distribute
+                  your contributions under the same license as the original.
+
+    No additional restrictions : You may not apply legal terms or technological measures that
+                                  legally restrict others from doing anything the license permits.
+
+   ** For commercial use, please contact the original copyright holder(s) to agree licensing terms
+
+    This software is distributed in the hope that it will be useful, but WITHOUT ANY
+    WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE
+
+**************************************************************************************************************
+  Note:   This source code has been written using a tab stop and indentation setting
+          of 4 characters. To see everything lined up correctly, please set your
+          IDE or text editor to the same settings.
+******************************************************************************************************
+*/
+package co.uk.ccmr.cbus.sniffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Tests that decode() gives the same results as the CbusEvent(String) constructor.
+ * 
+ * @author ianh
+ *
+ */
+public class CbusEventDecodeTest {
+	private static final int [] SIDH = {0x00, 0x50, 0xA3, 0xBF};
+	private static final int [] SIDL = {0x00, 0x20, 0xE0};
+	
+	/**
+	 * Build a standard frame with as many data bytes as the Opc has.
+	 */
+	private static String standard(int sidh, int sidl, char nr, int opc) {
+		Opc o = Opc.of(opc);
+		int len = (o == null) ? Opc.UNKNOWN.getLen() : o.getLen();
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(":S%02X%02X%c%02X", sidh, sidl, nr, opc));
+		for (int i=0; i<len; i++) {
+			sb.append(String.format("%02X", (opc + 37*i) & 0xFF));
+		}
+		return sb.append(';').toString();
+	}
+	
+	/**
+	 * Decode the frame each way and check the results match the constructor.
+	 */
+	private static void check(String frame) throws InvalidEventException {
+		CbusEvent expected = new CbusEvent(frame);
+		byte [] b = frame.getBytes(StandardCharsets.US_ASCII);
+		
+		byte [] padded = new byte[b.length + 5];
+		System.arraycopy(b, 0, padded, 3, b.length);
+		CbusEvent ce = new CbusEvent();
+		assertTrue(frame, ce.decode(padded, 3, b.length));
+		same(frame, expected, ce);
+		
+		ByteBuffer heap = ByteBuffer.wrap(padded, 3, b.length).slice();
+		assertTrue(frame, ce.decode(heap));
+		same(frame, expected, ce);
+		
+		ByteBuffer direct = ByteBuffer.allocateDirect(b.length + 4);
+		direct.position(2);
+		direct.put(b);
+		direct.flip();
+		direct.position(2);
+		assertTrue(frame, ce.decode(direct));
+		same(frame, expected, ce);
+		assertEquals(2, direct.position());
+	}
+	
+	private static void same(String frame, CbusEvent expected, CbusEvent actual) {
+		assertEquals(frame, expected.toString(), actual.toString());
+		assertEquals(frame, expected.isExtended(), actual.isExtended());
+		assertEquals(frame, expected.isRtr(), actual.isRtr());
+		assertEquals(frame, expected.hasOpc(), actual.hasOpc());
+		if (expected.isExtended()) {
+			assertEquals(frame, expected.getExtendedAddress(), actual.getExtendedAddress());
+		} else {
+			assertEquals(frame, expected.getOpc(), actual.getOpc());
+			assertEquals(frame, expected.getCANID(), actual.getCANID());
+			assertEquals(frame, expected.getMjPri(), actual.getMjPri());
+			assertEquals(frame, expected.getMinPri(), actual.getMinPri());
+			for (int i=0; i<7; i++) {
+				assertEquals(frame, expected.getData(i), actual.getData(i));
+			}
+		}
+	}
+	
+	/**
+	 * Every opcode value, in N and R frames with a range of priorities and CAN IDs.
+	 */
+	@Test
+	public void everyOpcode() throws InvalidEventException {
+		for (int opc=0; opc<256; opc++) {
+			for (int sidh : SIDH) {
+				for (int sidl : SIDL) {
+					check(standard(sidh, sidl, 'N', opc));
+					check(standard(sidh, sidl, 'R', opc));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Standard frames without an opcode.
+	 */
+	@Test
+	public void noOpcode() throws InvalidEventException {
+		check(":SB020N;");
+		check(":SB020R;");
+	}
+	
+	/**
+	 * Extended frames with each number of data bytes.
+	 */
+	@Test
+	public void extended() throws InvalidEventException {
+		StringBuilder data = new StringBuilder();
+		for (int n=0; n<=8; n++) {
+			check(":X0001ABCDN"+data+";");
+			check(":X1FFFFFFFR"+data+";");
+			data.append(String.format("%02X", 0x11*n));
+		}
+	}
+}